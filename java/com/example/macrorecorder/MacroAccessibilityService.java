@@ -2,57 +2,120 @@ package com.example.macrorecorder;
 
 import android.accessibilityservice.AccessibilityService;
 import android.accessibilityservice.AccessibilityServiceInfo;
-import android.accessibilityservice.GestureDescription;
-import android.graphics.Path;
-import android.graphics.Rect;
-import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 import android.os.Handler;
 import android.os.Looper;
 import com.example.macrorecorder.data.MacroAction;
-import com.example.macrorecorder.data.Preset;
+import com.example.macrorecorder.data.TimelineClock;
+import com.example.macrorecorder.logging.MacroLog;
+import com.example.macrorecorder.playback.GesturePipeline;
+import com.example.macrorecorder.playback.NodeIndex;
+import com.example.macrorecorder.playback.PlaybackController;
+import com.example.macrorecorder.playback.PlaybackOptions;
+import com.example.macrorecorder.playback.PlaybackPlan;
+import com.example.macrorecorder.playback.PlaybackScheduler;
+import com.example.macrorecorder.playback.UiEventTracker;
+import com.example.macrorecorder.recording.Recorder;
 import com.example.macrorecorder.repository.PresetRepository;
-import java.util.ArrayList;
+import com.example.macrorecorder.repository.RecordingJournal;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 public class MacroAccessibilityService extends AccessibilityService {
     private static MacroAccessibilityService instance;
 
-    private boolean isRecording = false;
+    private volatile boolean isRecording = false;
     private boolean isServiceConnected = false;
     private String currentPresetName;
-    private List<MacroAction> recordedActions;
-    private long recordingStartTime;
-    private PresetRepository presetRepository;
+    private RecordingJournal recordingJournal;
+    private long recordingStartMicros;
+    private final Recorder recorder = new Recorder();
+    private final PlaybackScheduler playbackScheduler = new PlaybackScheduler();
+    private GesturePipeline gesturePipeline;
+    private PlaybackController playbackController;
+    // Пакеты, события которых записываются (null — все)
+    private String[] recordingPackages;
+
+    // События, нужные для записи. Вне записи сервис не подписан ни на что,
+    // чтобы система не пересылала нам события впустую.
+    private static final int RECORDING_EVENT_TYPES = AccessibilityEvent.TYPE_VIEW_CLICKED |
+            AccessibilityEvent.TYPE_VIEW_LONG_CLICKED |
+            AccessibilityEvent.TYPE_VIEW_SCROLLED;
+
+    // События, по которым проверяются шаги ожидания и сбрасывается индекс
+    // view окна; подписка только на время воспроизведения плана с ними
+    private static final int UI_WAIT_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED |
+            AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED |
+            AccessibilityEvent.TYPE_VIEW_SCROLLED;
+    private volatile boolean isWaitingForUiEvents;
+    private final UiEventTracker uiEventTracker = new UiEventTracker(this::isViewPresent);
+    private final NodeIndex nodeIndex = new NodeIndex();
+    private final PlaybackScheduler.ActionDispatcher stepDispatcher = new PlaybackScheduler.ActionDispatcher() {
+        @Override
+        public void dispatch(PlaybackPlan plan, int index) {
+            dispatchStep(plan, index);
+        }
 
-    // Константы для типов событий
-    private static final int EVENT_TYPE_CLICK = 0;
-    private static final int EVENT_TYPE_LONG_CLICK = 1;
-    private static final int EVENT_TYPE_TOUCH_DOWN = 2;
-    private static final int EVENT_TYPE_TOUCH_UP = 3;
+        @Override
+        public boolean isConditionMet(PlaybackPlan plan, int index, long sinceNanos) {
+            return uiEventTracker.isConditionMet(plan.getWaitCondition(index), plan.getViewId(index), sinceNanos);
+        }
+    };
+
+    // Режим высокой частоты: система доставляет события сразу, без задержки
+    // notificationTimeout, а повторные доставки отбрасываются в потоке записи
+    private static final long NORMAL_NOTIFICATION_TIMEOUT_MS = 100;
+    private static final String RECORDING_PREFS_NAME = "recording_options";
+    private static final String HIGH_RATE_CAPTURE_KEY = "high_rate_capture";
+    private volatile boolean highRateCapture = true;
+    private PresetRepository presetRepository;
 
     @Override
     public void onCreate() {
         super.onCreate();
         instance = this;
-        presetRepository = new PresetRepository(this);
-        Log.d("MacroAccessibilityService", "onCreate() вызван");
+        presetRepository = PresetRepository.getInstance(this);
+        highRateCapture = getSharedPreferences(RECORDING_PREFS_NAME, MODE_PRIVATE)
+                .getBoolean(HIGH_RATE_CAPTURE_KEY, true);
+        gesturePipeline = new GesturePipeline(this);
+        gesturePipeline.setTargetHandler(this::performTarget);
+        playbackController = new PlaybackController(playbackScheduler, gesturePipeline, stepDispatcher);
+        playbackController.addOnStateChangedListener(state -> {
+            if (state == PlaybackController.STATE_IDLE && isWaitingForUiEvents) {
+                isWaitingForUiEvents = false;
+                updateSubscription();
+                nodeIndex.invalidate(-1);
+            }
+        });
+        MacroLog.d(MacroLog.SERVICE, "onCreate() вызван");
+
+        // Подробная трассировка: adb shell setprop log.tag.MacroLog VERBOSE
+        if (MacroLog.isTracingRequested()) {
+            MacroLog.startTracing(new File(getCacheDir(), "macro_trace.bin"));
+        }
+
+        // Сохраняем записи, оборвавшиеся из-за падения процесса
+        presetRepository.recoverInterruptedRecordingsAsync(recovered -> {
+            if (recovered != null && recovered > 0) {
+                MacroLog.d(MacroLog.SERVICE, "Восстановлено прерванных записей: " + recovered);
+            }
+        });
     }
 
     @Override
     public void onServiceConnected() {
         super.onServiceConnected();
         isServiceConnected = true;
-        Log.d("MacroAccessibilityService", "Сервис подключен");
+        MacroLog.d(MacroLog.SERVICE, "Сервис подключен");
 
         // Настройка сервиса
         AccessibilityServiceInfo info = new AccessibilityServiceInfo();
-        info.eventTypes = AccessibilityEvent.TYPE_VIEW_CLICKED |
-                AccessibilityEvent.TYPE_VIEW_LONG_CLICKED |
-                AccessibilityEvent.TYPE_VIEW_SCROLLED;
+        info.eventTypes = getSubscribedEventTypes();
+        info.packageNames = isRecording ? recordingPackages : null;
         info.feedbackType = AccessibilityServiceInfo.FEEDBACK_GENERIC;
-        info.notificationTimeout = 100;
+        info.notificationTimeout = getNotificationTimeout();
         info.flags = AccessibilityServiceInfo.FLAG_REPORT_VIEW_IDS |
                 AccessibilityServiceInfo.FLAG_RETRIEVE_INTERACTIVE_WINDOWS |
                 AccessibilityServiceInfo.FLAG_INCLUDE_NOT_IMPORTANT_VIEWS;
@@ -62,6 +125,14 @@ public class MacroAccessibilityService extends AccessibilityService {
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (isWaitingForUiEvents && (event.getEventType() & UI_WAIT_EVENT_TYPES) != 0) {
+            uiEventTracker.onUiEvent(System.nanoTime());
+            playbackScheduler.onUiEvent();
+            nodeIndex.onUiEvent();
+            if (event.getEventType() == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+                nodeIndex.invalidate(event.getWindowId());
+            }
+        }
         if (!isRecording) {
             return;
         }
@@ -70,91 +141,28 @@ public class MacroAccessibilityService extends AccessibilityService {
 
         switch (event.getEventType()) {
             case AccessibilityEvent.TYPE_VIEW_CLICKED:
-                eventType = EVENT_TYPE_CLICK;
-                Log.d("MacroAccessibilityService", "Записан клик");
+                eventType = MacroAction.TYPE_CLICK;
                 break;
             case AccessibilityEvent.TYPE_VIEW_LONG_CLICKED:
-                eventType = EVENT_TYPE_LONG_CLICK;
-                Log.d("MacroAccessibilityService", "Записан долгий клик");
+                eventType = MacroAction.TYPE_LONG_CLICK;
                 break;
-            case AccessibilityEvent.TYPE_VIEW_FOCUSED:
-            case AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED:
             case AccessibilityEvent.TYPE_VIEW_SCROLLED:
-                // We don't record these events for macro purposes
-                return;
+                // Серия прокруток собирается в штрих в потоке записи
+                eventType = MacroAction.TYPE_STROKE;
+                break;
             default:
-                return; // Записываем только клики
+                return;
         }
 
-        AccessibilityNodeInfo source = event.getSource();
-        if (source != null) {
-            try {
-                // Получаем координаты элемента
-                Rect bounds = new Rect();
-                source.getBoundsInScreen(bounds);
-
-                if (bounds.isEmpty()) {
-                    // Если не можем получить границы, пробуем другие методы
-                    Log.w("MacroAccessibilityService", "Bounds пустые, пытаемся получить координаты другим способом");
-
-                    // Пробуем получить информацию о событии
-                    List<CharSequence> eventText = event.getText();
-                    if (eventText != null && !eventText.isEmpty()) {
-                        // Можно записать информацию о тексте
-                        Log.d("MacroAccessibilityService", "Текст события: " + eventText.get(0));
-                    }
-
-                    // Пытаемся получить координаты через родительский элемент
-                    Rect parentBounds = new Rect();
-                    source.getBoundsInParent(parentBounds);
-
-                    if (!parentBounds.isEmpty()) {
-                        bounds = parentBounds;
-                        Log.d("MacroAccessibilityService", "Используем координаты из родителя");
-                    } else {
-                        // Если все еще пусто, используем дефолтные координаты
-                        bounds.set(100, 100, 200, 200); // Дефолтные координаты
-                        Log.w("MacroAccessibilityService", "Используем дефолтные координаты");
-                    }
-                }
-
-                // Используем центр элемента
-                float x = bounds.left + bounds.width() / 2f;
-                float y = bounds.top + bounds.height() / 2f;
-
-                long timestamp = System.currentTimeMillis() - recordingStartTime;
-
-                // Создаем и добавляем действие
-                MacroAction action = new MacroAction(eventType, x, y, timestamp);
-                Log.d("MacroAccessibilityService", "Создано действие: тип=" + eventType +
-                        ", x=" + x + ", y=" + y + ", время=" + timestamp);
-
-                // Рассчитываем задержку
-                if (!recordedActions.isEmpty()) {
-                    MacroAction prev = recordedActions.get(recordedActions.size() - 1);
-                    long delay = timestamp - prev.getTimestamp();
-                    action.setDelay(delay);
-                    Log.d("MacroAccessibilityService", "Задержка: " + delay + "ms");
-                } else {
-                    action.setDelay(0);
-                }
-
-                recordedActions.add(action);
-                Log.d("MacroRecorder", "Записано действие: " + eventType + " в (" + x + ", " + y + ")");
-
-            } catch (Exception e) {
-                Log.e("MacroAccessibilityService", "Ошибка обработки события: " + e.getMessage());
-            } finally {
-                source.recycle();
-            }
-        } else {
-            Log.w("MacroAccessibilityService", "Источник события null");
-        }
+        // Время берется из самого события, а не из момента доставки.
+        // Источник и координаты разрешаются в потоке записи.
+        long timestamp = TimelineClock.eventTimeMicros(event.getEventTime()) - recordingStartMicros;
+        recorder.capture(eventType, Math.max(0, timestamp), event);
     }
 
     @Override
     public void onInterrupt() {
-        Log.d("MacroAccessibilityService", "Сервис был прерван");
+        MacroLog.d(MacroLog.SERVICE, "Сервис был прерван");
         isServiceConnected = false;
         stopRecording();
     }
@@ -163,219 +171,223 @@ public class MacroAccessibilityService extends AccessibilityService {
     public void onDestroy() {
         isServiceConnected = false;
         instance = null;
+        // Дописываем отложенные изменения пресетов до остановки сервиса
+        presetRepository.flush();
+        playbackController.stop();
+        playbackScheduler.shutdown();
+        gesturePipeline.quit();
+        MacroLog.stopTracing();
         super.onDestroy();
-        Log.d("MacroAccessibilityService", "Сервис уничтожен");
+        MacroLog.d(MacroLog.SERVICE, "Сервис уничтожен");
     }
 
     public void startRecording(String presetName) {
-        Log.d("MacroAccessibilityService", "Вызов startRecording с именем: " + presetName);
+        startRecording(presetName, null);
+    }
+
+    // packageNames ограничивает запись событиями указанных приложений (null — все приложения)
+    public synchronized void startRecording(String presetName, String[] packageNames) {
+        MacroLog.d(MacroLog.SERVICE, "Вызов startRecording с именем: " + presetName);
+
+        try {
+            recordingJournal = presetRepository.startJournal(presetName);
+        } catch (IOException e) {
+            MacroLog.e(MacroLog.SERVICE, "Не удалось начать журнал записи: " + e.getMessage());
+            if (recordingJournal != null) {
+                presetRepository.discardJournal(recordingJournal);
+                recordingJournal = null;
+            }
+            return;
+        }
 
-        isRecording = true;
         currentPresetName = presetName;
-        recordedActions = new ArrayList<>();
-        recordingStartTime = System.currentTimeMillis();
-        Log.d("MacroAccessibilityService", "Начало записи: " + presetName + ", время начала: " + recordingStartTime);
-
-        // Добавляем первое действие (начало записи)
-        MacroAction startAction = new MacroAction(
-                EVENT_TYPE_TOUCH_DOWN,
-                0, 0,
-                0
-        );
-        recordedActions.add(startAction);
-        Log.d("MacroAccessibilityService", "Добавлено начальное действие, всего действий: " + recordedActions.size());
+        recordingStartMicros = TimelineClock.nowMicros();
+
+        recorder.start(recordingJournal);
+        isRecording = true;
+        recordingPackages = packageNames;
+        updateSubscription();
+        MacroLog.d(MacroLog.SERVICE, "Начало записи: " + presetName + ", время начала: " + recordingStartMicros);
     }
 
-    public void stopRecording() {
-        Log.d("MacroAccessibilityService", "Вызов stopRecording, isRecording=" + isRecording);
+    public synchronized void stopRecording() {
+        MacroLog.d(MacroLog.SERVICE, "Вызов stopRecording, isRecording=" + isRecording);
 
         if (!isRecording) return;
 
         isRecording = false;
-        Log.d("MacroAccessibilityService", "Окончание записи. Записано действий: " +
-                (recordedActions != null ? recordedActions.size() : 0));
-
-        // Добавляем последнее действие (окончание записи)
-        if (recordedActions != null && !recordedActions.isEmpty()) {
-            long endTime = System.currentTimeMillis() - recordingStartTime;
-            MacroAction endAction = new MacroAction(
-                    EVENT_TYPE_TOUCH_UP,
-                    0, 0,
-                    endTime
-            );
-            if (recordedActions.size() > 1) {
-                MacroAction lastAction = recordedActions.get(recordedActions.size() - 1);
-                endAction.setDelay(endTime - lastAction.getTimestamp());
-            }
-            recordedActions.add(endAction);
-            Log.d("MacroAccessibilityService", "Добавлено конечное действие");
-        }
+        recordingPackages = null;
+        updateSubscription();
 
-        // Сохраняем пресет
-        if (recordedActions != null && !recordedActions.isEmpty()) {
+        if (recordingJournal != null) {
             try {
-                Preset preset = new Preset(
-                        PresetRepository.generateId(),
-                        currentPresetName,
-                        System.currentTimeMillis(),
-                        recordedActions
-                );
-
-                presetRepository.savePreset(preset);
-                Log.d("MacroAccessibilityService", "Пресет сохранен: " + preset.getName() +
-                        ", ID: " + preset.getId() + ", действий: " + preset.getActions().size());
-            } catch (Exception e) {
-                Log.e("MacroAccessibilityService", "Ошибка сохранения пресета: " + e.getMessage());
+                // Дожидаемся потока записи: он дописывает очередь и конечное действие
+                recorder.stop(TimelineClock.nowMicros() - recordingStartMicros);
+                MacroLog.d(MacroLog.SERVICE, "Окончание записи. Записано действий: " +
+                        recorder.getRecordedCount());
+
+                // Сохраняем пресет в фоне, не задерживая доставку событий
+                presetRepository.commitJournalAsync(recordingJournal, preset -> {
+                    if (preset != null) {
+                        MacroLog.d(MacroLog.SERVICE, "Пресет сохранен: " + preset.getName() +
+                                ", ID: " + preset.getId() + ", действий: " + preset.getActionCount());
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                // Журнал остается на диске и будет восстановлен при следующем запуске
+                MacroLog.e(MacroLog.SERVICE, "Ошибка сохранения пресета: " + e.getMessage());
             }
         } else {
-            Log.w("MacroAccessibilityService", "Нет действий для сохранения");
+            MacroLog.w(MacroLog.SERVICE, "Нет действий для сохранения");
         }
 
-        recordedActions = null;
+        recordingJournal = null;
         currentPresetName = null;
-        Log.d("MacroAccessibilityService", "Запись завершена и очищена");
+        MacroLog.d(MacroLog.SERVICE, "Запись завершена и очищена");
     }
 
-    public void playMacro(List<MacroAction> actions) {
-        if (actions == null || actions.isEmpty()) {
-            Log.e("MacroAccessibilityService", "Нет действий для воспроизведения");
+    // Подписывается на события записи и шагов ожидания или отписывается от всех событий
+    private void updateSubscription() {
+        AccessibilityServiceInfo info = getServiceInfo();
+        if (info == null) {
+            // Сервис еще не подключен: подписка выставится в onServiceConnected
             return;
         }
+        info.eventTypes = getSubscribedEventTypes();
+        info.packageNames = isRecording ? recordingPackages : null;
+        info.notificationTimeout = getNotificationTimeout();
+        setServiceInfo(info);
+    }
 
-        Log.d("MacroAccessibilityService", "Начало воспроизведения макроса, действий: " + actions.size());
+    private int getSubscribedEventTypes() {
+        return (isRecording ? RECORDING_EVENT_TYPES : 0) | (isWaitingForUiEvents ? UI_WAIT_EVENT_TYPES : 0);
+    }
 
-        new Thread(() -> {
-            try {
-                for (int i = 0; i < actions.size(); i++) {
-                    MacroAction action = actions.get(i);
-
-                    // Задержка перед выполнением действия
-                    if (action.getDelay() > 0) {
-                        try {
-                            Thread.sleep(action.getDelay());
-                        } catch (InterruptedException e) {
-                            Log.e("MacroAccessibilityService", "Воспроизведение прервано: " + e.getMessage());
-                            Thread.currentThread().interrupt();
-                            return;
-                        }
-                    }
+    // Без задержки события доставляются только записи: ожиданиям и индексу
+    // view хватает обычной задержки
+    private long getNotificationTimeout() {
+        return isRecording && highRateCapture ? 0 : NORMAL_NOTIFICATION_TIMEOUT_MS;
+    }
 
-                    // Эмуляция жеста в зависимости от типа события
-                    switch (action.getEventType()) {
-                        case EVENT_TYPE_CLICK:
-                            dispatchClick(action.getX(), action.getY());
-                            break;
-                        case EVENT_TYPE_LONG_CLICK:
-                            dispatchLongClick(action.getX(), action.getY());
-                            break;
-                        case EVENT_TYPE_TOUCH_DOWN:
-                            // Начало жеста
-                            Log.d("MacroAccessibilityService", "Начало жеста");
-                            break;
-                        case EVENT_TYPE_TOUCH_UP:
-                            // Окончание жеста
-                            Log.d("MacroAccessibilityService", "Окончание жеста");
-                            break;
-                    }
-                }
-                Log.d("MacroAccessibilityService", "Воспроизведение завершено");
-            } catch (Exception e) {
-                Log.e("MacroAccessibilityService", "Ошибка воспроизведения: " + e.getMessage());
-            }
-        }).start();
+    // Применяется со следующей записи
+    public void setHighRateCapture(boolean enabled) {
+        highRateCapture = enabled;
+        getSharedPreferences(RECORDING_PREFS_NAME, MODE_PRIVATE).edit()
+                .putBoolean(HIGH_RATE_CAPTURE_KEY, enabled)
+                .apply();
     }
 
-    private void dispatchClick(float x, float y) {
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-            try {
-                Path clickPath = new Path();
-                clickPath.moveTo(x, y);
-
-                GestureDescription.Builder gestureBuilder = new GestureDescription.Builder();
-                GestureDescription.StrokeDescription stroke = new GestureDescription.StrokeDescription(
-                        clickPath, 0, 100 // Нажатие на 100 мс для обычного клика
-                );
-                gestureBuilder.addStroke(stroke);
-
-                dispatchGesture(gestureBuilder.build(), new GestureResultCallback() {
-                    @Override
-                    public void onCompleted(GestureDescription gestureDescription) {
-                        Log.d("MacroAccessibilityService", "Клик выполнен в (" + x + ", " + y + ")");
-                    }
+    public boolean isHighRateCapture() {
+        return highRateCapture;
+    }
 
-                    @Override
-                    public void onCancelled(GestureDescription gestureDescription) {
-                        Log.w("MacroAccessibilityService", "Клик отменен в (" + x + ", " + y + ")");
-                    }
-                }, null);
-                Log.d("MacroAccessibilityService", "Отправлен клик в (" + x + ", " + y + ")");
-            } catch (Exception e) {
-                Log.e("MacroAccessibilityService", "Ошибка отправки клика: " + e.getMessage());
-            }
-        } else {
-            Log.w("MacroAccessibilityService", "API < 24, dispatchGesture не поддерживается");
+    // Запускает воспроизведение, занятое ранее через getPlaybackController().prepare()
+    public boolean playMacro(PlaybackPlan plan, PlaybackOptions options) {
+        if (plan == null || plan.size() == 0) {
+            MacroLog.e(MacroLog.PLAYER, "Нет действий для воспроизведения");
+            playbackController.stop();
+            return false;
+        }
+
+        MacroLog.d(MacroLog.PLAYER, "Начало воспроизведения макроса, шагов: ", plan.size());
+        gesturePipeline.setRetryPolicy(options.retryCancelled
+                ? GesturePipeline.DEFAULT_RETRY : GesturePipeline.NO_RETRY);
+        if (!playbackController.start(plan, options)) {
+            return false;
+        }
+        // Отписка — при переходе контроллера в IDLE
+        if ((plan.hasWaitSteps() || plan.hasTargets()) && !isWaitingForUiEvents) {
+            // Без подписки смены окон не отслеживались, старый индекс недостоверен
+            nodeIndex.invalidate(-1);
+            isWaitingForUiEvents = true;
+            updateSubscription();
         }
+        return true;
     }
 
-    private void dispatchLongClick(float x, float y) {
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-            try {
-                Path longClickPath = new Path();
-                longClickPath.moveTo(x, y);
-
-                GestureDescription.Builder gestureBuilder = new GestureDescription.Builder();
-                GestureDescription.StrokeDescription stroke = new GestureDescription.StrokeDescription(
-                        longClickPath, 0, 500 // Нажатие на 500 мс для долгого клика
-                );
-                gestureBuilder.addStroke(stroke);
-
-                dispatchGesture(gestureBuilder.build(), new GestureResultCallback() {
-                    @Override
-                    public void onCompleted(GestureDescription gestureDescription) {
-                        Log.d("MacroAccessibilityService", "Долгий клик выполнен в (" + x + ", " + y + ")");
-                    }
+    public PlaybackController getPlaybackController() {
+        return playbackController;
+    }
 
-                    @Override
-                    public void onCancelled(GestureDescription gestureDescription) {
-                        Log.w("MacroAccessibilityService", "Долгий клик отменен в (" + x + ", " + y + ")");
-                    }
-                }, null);
-                Log.d("MacroAccessibilityService", "Отправлен долгий клик в (" + x + ", " + y + ")");
-            } catch (Exception e) {
-                Log.e("MacroAccessibilityService", "Ошибка отправки долгого клика: " + e.getMessage());
+    public GesturePipeline getGesturePipeline() {
+        return gesturePipeline;
+    }
+
+    // Отправка готового жеста шага плана; вызывается на потоке воспроизведения
+    private void dispatchStep(PlaybackPlan plan, int index) {
+        gesturePipeline.submit(plan, index, playbackController.getGestureEpoch());
+        MacroLog.d(MacroLog.PLAYER, "Отправлен жест шага ", index);
+    }
+
+    // Нажимает view шага действием доступности, если записанная точка касания
+    // не попадает ни в один подходящий view; вызывается на потоке жестов.
+    // Если точка верна, остается жест: его обработает любой view.
+    private boolean performTarget(PlaybackPlan plan, int step) {
+        // Корень активного окна индекс держит сам до смены окна
+        AccessibilityNodeInfo node = nodeIndex.findMovedTarget(this, plan.getTarget(step),
+                plan.getTapX(step), plan.getTapY(step));
+        if (node == null) {
+            return false;
+        }
+        int action = plan.getKind(step) == MacroAction.TYPE_LONG_CLICK
+                ? AccessibilityNodeInfo.ACTION_LONG_CLICK
+                : AccessibilityNodeInfo.ACTION_CLICK;
+        boolean performed = node.performAction(action);
+        node.recycle();
+        MacroLog.d(MacroLog.PLAYER, "View сместился, нажатие через действие доступности, шаг ", step);
+        return performed;
+    }
+
+    // Есть ли в активном окне видимое view с resource id viewId; вызывается на потоке воспроизведения
+    private boolean isViewPresent(String viewId) {
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return false;
+        }
+        boolean present = false;
+        List<AccessibilityNodeInfo> nodes = root.findAccessibilityNodeInfosByViewId(viewId);
+        if (nodes != null) {
+            for (AccessibilityNodeInfo node : nodes) {
+                present |= node.isVisibleToUser();
+                node.recycle();
             }
         }
+        root.recycle();
+        return present;
     }
 
     public boolean isRecording() {
-        Log.d("MacroAccessibilityService", "isRecording() возвращает: " + isRecording);
         return isRecording;
     }
 
     public boolean isServiceConnected() {
-        Log.d("MacroAccessibilityService", "isServiceConnected() возвращает: " + isServiceConnected);
         return isServiceConnected;
     }
 
     public int getRecordedActionsCount() {
-        int count = recordedActions != null ? recordedActions.size() : 0;
-        Log.d("MacroAccessibilityService", "getRecordedActionsCount() возвращает: " + count);
-        return count;
+        return recorder.getRecordedCount();
+    }
+
+    // Статистика текущей или последней записи
+    public int getMergedEventsCount() {
+        return recorder.getMergedCount();
+    }
+
+    public int getDroppedEventsCount() {
+        return recorder.getDroppedCount();
     }
 
     public String getCurrentPresetName() {
-        Log.d("MacroAccessibilityService", "getCurrentPresetName() возвращает: " + currentPresetName);
         return currentPresetName;
     }
 
     public static MacroAccessibilityService getInstance() {
-        Log.d("MacroAccessibilityService", "getInstance() вызван, instance=" + instance);
         return instance;
     }
 
     // Метод для тестирования
     public void testService() {
-        Log.d("MacroAccessibilityService", "testService() вызван");
+        MacroLog.d(MacroLog.SERVICE, "testService() вызван");
         // Можно добавить уведомление
     }
 }
\ No newline at end of file
@@ -16,20 +16,26 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.provider.Settings;
+import android.text.InputType;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.Gravity;
 import android.view.LayoutInflater;
+import android.view.Menu;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.LinearLayout;
 import android.widget.PopupMenu;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.core.app.NotificationCompat;
-import com.example.macrorecorder.data.Preset;
+import com.example.macrorecorder.playback.PlanCache;
+import com.example.macrorecorder.playback.PlaybackController;
+import com.example.macrorecorder.playback.PlaybackOptions;
 import com.example.macrorecorder.repository.PresetRepository;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -53,7 +59,7 @@ public class MainService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        presetRepository = new PresetRepository(this);
+        presetRepository = PresetRepository.getInstance(this);
         createNotificationChannel();
         showFloatingButton();
     }
@@ -67,10 +73,15 @@ public class MainService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        // Дописываем отложенные изменения пресетов до остановки сервиса
+        presetRepository.flush();
         removeFloatingButton();
-        if (countDownTimer != null) {
-            countDownTimer.cancel();
+        // Отсчет, не дошедший до запуска, освобождает воспроизведение
+        PlaybackController controller = getPlaybackController();
+        if (controller != null && controller.getState() == PlaybackController.STATE_COUNTDOWN) {
+            controller.stop();
         }
+        cancelCountdown();
     }
 
     @Override
@@ -185,6 +196,7 @@ public class MainService extends Service {
         try {
             PopupMenu popupMenu = new PopupMenu(this, anchor);
             popupMenu.getMenuInflater().inflate(R.menu.main_menu, popupMenu.getMenu());
+            updatePlaybackMenu(popupMenu.getMenu());
 
             popupMenu.setOnMenuItemClickListener(item -> {
                 int id = item.getItemId();
@@ -192,12 +204,39 @@ public class MainService extends Service {
                 if (id == R.id.menu_play) {
                     playMacro();
                     return true;
+                } else if (id == R.id.menu_pause_playback) {
+                    PlaybackController controller = getPlaybackController();
+                    if (controller != null && controller.pause()) {
+                        showToast("Воспроизведение на паузе");
+                    }
+                    return true;
+                } else if (id == R.id.menu_resume_playback) {
+                    PlaybackController controller = getPlaybackController();
+                    if (controller != null) {
+                        controller.resume();
+                    }
+                    return true;
+                } else if (id == R.id.menu_stop_playback) {
+                    stopPlayback();
+                    return true;
+                } else if (id == R.id.menu_playback_options) {
+                    showPlaybackOptionsDialog();
+                    return true;
                 } else if (id == R.id.menu_select_preset) {
                     selectPreset();
                     return true;
                 } else if (id == R.id.menu_record) {
                     startRecording();
                     return true;
+                } else if (id == R.id.menu_high_rate_capture) {
+                    MacroAccessibilityService service = MacroAccessibilityService.getInstance();
+                    if (service != null) {
+                        service.setHighRateCapture(!item.isChecked());
+                        showToast(service.isHighRateCapture()
+                                ? "Запись без задержки: со следующей записи"
+                                : "Обычная запись: со следующей записи");
+                    }
+                    return true;
                 } else if (id == R.id.menu_test_record) {
                     testRecording();
                     return true;
@@ -262,22 +301,140 @@ public class MainService extends Service {
     }
 
     private void playMacro() {
-        Preset currentPreset = presetRepository.getCurrentPreset();
-        if (currentPreset == null) {
-            showToast("Сначала выберите пресет!");
+        MacroAccessibilityService service = MacroAccessibilityService.getInstance();
+        if (service == null) {
+            showToast("Сервис недоступен. Проверьте разрешения.");
             return;
         }
 
-        showCountdown("Воспроизведение начнется через", () -> {
-            MacroAccessibilityService service = MacroAccessibilityService.getInstance();
-            if (service != null) {
-                service.playMacro(currentPreset.getActions());
-            } else {
-                showToast("Сервис недоступен. Проверьте разрешения.");
+        // Экраном управляет только один макрос
+        PlaybackController controller = service.getPlaybackController();
+        if (!controller.prepare()) {
+            showToast("Макрос уже воспроизводится");
+            return;
+        }
+
+        // План берется из кэша или компилируется в фоне, результат приходит в главный поток
+        PlaybackOptions options = PlaybackOptions.load(this);
+        PlanCache.getInstance().loadCurrentPlanAsync(presetRepository, options, plan -> {
+            if (plan == null) {
+                controller.stop();
+                showToast("Сначала выберите пресет!");
+                return;
+            }
+            if (controller.getState() != PlaybackController.STATE_COUNTDOWN) {
+                // Остановлено, пока готовился план
+                return;
             }
+
+            showCountdown("Воспроизведение начнется через", () -> {
+                if (!service.playMacro(plan, options)) {
+                    showToast("Воспроизведение отменено");
+                }
+            });
         });
     }
 
+    private void stopPlayback() {
+        PlaybackController controller = getPlaybackController();
+        if (controller == null) {
+            return;
+        }
+        if (controller.getState() == PlaybackController.STATE_COUNTDOWN) {
+            cancelCountdown();
+        }
+        controller.stop();
+        int iterations = controller.getCompletedIterations();
+        if (iterations > 0) {
+            showToast("Воспроизведение остановлено, повторов: " + iterations +
+                    ", последний: " + controller.getLastIterationMillis() + " мс");
+        } else {
+            showToast("Воспроизведение остановлено");
+        }
+    }
+
+    private void showPlaybackOptionsDialog() {
+        PlaybackOptions options = PlaybackOptions.load(this);
+        androidx.appcompat.app.AlertDialog.Builder builder =
+                new androidx.appcompat.app.AlertDialog.Builder(this, R.style.Theme_MacroRecorder_Dialog);
+        builder.setTitle("Параметры воспроизведения");
+
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+
+        final androidx.appcompat.widget.AppCompatEditText speedInput =
+                new androidx.appcompat.widget.AppCompatEditText(this);
+        speedInput.setHint("Скорость (1 — как при записи)");
+        speedInput.setInputType(InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+        speedInput.setText(String.valueOf(options.speed));
+        layout.addView(speedInput);
+
+        final androidx.appcompat.widget.AppCompatEditText loopsInput =
+                new androidx.appcompat.widget.AppCompatEditText(this);
+        loopsInput.setHint("Повторы (0 — бесконечно)");
+        loopsInput.setInputType(InputType.TYPE_CLASS_NUMBER);
+        loopsInput.setText(String.valueOf(options.loopCount));
+        layout.addView(loopsInput);
+
+        final CheckBox turboCheck = new CheckBox(this);
+        turboCheck.setText("Турбо: сократить паузы между действиями");
+        turboCheck.setChecked(options.turbo);
+        layout.addView(turboCheck);
+
+        final CheckBox waitForUiCheck = new CheckBox(this);
+        waitForUiCheck.setText("Ждать реакции интерфейса вместо записанных пауз");
+        waitForUiCheck.setChecked(options.waitForUi);
+        layout.addView(waitForUiCheck);
+
+        final CheckBox retryCheck = new CheckBox(this);
+        retryCheck.setText("Повторять жесты, отмененные системой");
+        retryCheck.setChecked(options.retryCancelled);
+        layout.addView(retryCheck);
+
+        builder.setView(layout);
+        builder.setPositiveButton("Сохранить", (dialog, which) -> {
+            float speed = options.speed;
+            int loopCount = options.loopCount;
+            try {
+                speed = Float.parseFloat(speedInput.getText().toString().trim().replace(',', '.'));
+            } catch (NumberFormatException e) {
+                showToast("Неверная скорость, оставлена прежняя");
+            }
+            try {
+                loopCount = Integer.parseInt(loopsInput.getText().toString().trim());
+            } catch (NumberFormatException e) {
+                showToast("Неверное число повторов, оставлено прежнее");
+            }
+            new PlaybackOptions(speed, turboCheck.isChecked(), waitForUiCheck.isChecked(), loopCount,
+                    retryCheck.isChecked()).save(this);
+        });
+
+        builder.setNegativeButton("Отмена", null);
+        builder.show();
+    }
+
+    private PlaybackController getPlaybackController() {
+        MacroAccessibilityService service = MacroAccessibilityService.getInstance();
+        return service != null ? service.getPlaybackController() : null;
+    }
+
+    // Пункты меню зависят от состояния воспроизведения и режима записи
+    private void updatePlaybackMenu(Menu menu) {
+        PlaybackController controller = getPlaybackController();
+        int state = controller != null ? controller.getState() : PlaybackController.STATE_IDLE;
+        boolean active = state != PlaybackController.STATE_IDLE;
+
+        menu.findItem(R.id.menu_play).setVisible(!active);
+        menu.findItem(R.id.menu_pause_playback).setVisible(state == PlaybackController.STATE_PLAYING);
+        menu.findItem(R.id.menu_resume_playback).setVisible(state == PlaybackController.STATE_PAUSED);
+        menu.findItem(R.id.menu_stop_playback).setVisible(active && state != PlaybackController.STATE_STOPPING);
+
+        MacroAccessibilityService service = MacroAccessibilityService.getInstance();
+        menu.findItem(R.id.menu_high_rate_capture)
+                .setVisible(service != null)
+                .setChecked(service != null && service.isHighRateCapture());
+    }
+
     private void selectPreset() {
         Intent intent = new Intent(this, PresetListActivity.class);
         intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -669,11 +826,23 @@ public class MainService extends Service {
             public void onFinish() {
                 windowManager.removeView(countdownTextView);
                 countdownTextView = null;
+                countDownTimer = null;
                 onFinish.run();
             }
         }.start();
     }
 
+    private void cancelCountdown() {
+        if (countDownTimer != null) {
+            countDownTimer.cancel();
+            countDownTimer = null;
+        }
+        if (countdownTextView != null) {
+            windowManager.removeView(countdownTextView);
+            countdownTextView = null;
+        }
+    }
+
     private void showStopButton() {
         // Убедимся, что мы в главном потоке
         new Handler(Looper.getMainLooper()).post(() -> {
@@ -745,7 +914,9 @@ public class MainService extends Service {
         MacroAccessibilityService service = MacroAccessibilityService.getInstance();
         if (service != null && service.isRecording()) {
             service.stopRecording();
-            showToast("Запись сохранена!");
+            showToast("Запись сохранена! Действий: " + service.getRecordedActionsCount() +
+                    ", объединено повторов: " + service.getMergedEventsCount() +
+                    ", пропущено событий: " + service.getDroppedEventsCount());
 
             // Обновляем список пресетов (если нужно)
             selectPreset();
@@ -8,7 +8,9 @@ import android.widget.TextView;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
-import com.example.macrorecorder.data.Preset;
+import com.example.macrorecorder.data.PresetSummary;
+import com.example.macrorecorder.playback.PlanCache;
+import com.example.macrorecorder.playback.PlaybackOptions;
 import com.example.macrorecorder.repository.PresetRepository;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import java.text.SimpleDateFormat;
@@ -21,12 +23,15 @@ public class PresetListActivity extends AppCompatActivity {
     private PresetAdapter adapter;
     private PresetRepository presetRepository;
 
+    // Список обновляется, когда пресеты меняются в этом или другом процессе
+    private final PresetRepository.OnPresetsChangedListener presetsChangedListener = presetId -> loadPresets();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_preset_list);
 
-        presetRepository = new PresetRepository(this);
+        presetRepository = PresetRepository.getInstance(this);
 
         recyclerView = findViewById(R.id.preset_recycler_view);
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
@@ -37,19 +42,32 @@ public class PresetListActivity extends AppCompatActivity {
             finish(); // Возвращаемся к плавающей кнопке
         });
 
+        presetRepository.addOnPresetsChangedListener(presetsChangedListener);
         loadPresets();
     }
 
+    @Override
+    protected void onDestroy() {
+        presetRepository.removeOnPresetsChangedListener(presetsChangedListener);
+        super.onDestroy();
+    }
+
     private void loadPresets() {
-        List<Preset> presets = presetRepository.getAllPresets();
-        adapter = new PresetAdapter(presets);
-        recyclerView.setAdapter(adapter);
+        // Для списка достаточно метаданных из индекса; действия загружаются только при воспроизведении
+        presetRepository.loadPresetSummariesAsync(presets -> {
+            if (isDestroyed()) {
+                return;
+            }
+            adapter = new PresetAdapter(presets);
+            recyclerView.setAdapter(adapter);
+        });
     }
 
     private class PresetAdapter extends RecyclerView.Adapter<PresetAdapter.ViewHolder> {
-        private List<Preset> presets;
+        private List<PresetSummary> presets;
+        private final SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yyyy HH:mm", Locale.getDefault());
 
-        public PresetAdapter(List<Preset> presets) {
+        public PresetAdapter(List<PresetSummary> presets) {
             this.presets = presets;
         }
 
@@ -62,11 +80,10 @@ public class PresetListActivity extends AppCompatActivity {
 
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
-            Preset preset = presets.get(position);
+            PresetSummary preset = presets.get(position);
 
             holder.nameText.setText(preset.getName());
 
-            SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yyyy HH:mm", Locale.getDefault());
             holder.dateText.setText(sdf.format(new Date(preset.getDateCreated())));
 
             long duration = preset.getDuration();
@@ -74,8 +91,10 @@ public class PresetListActivity extends AppCompatActivity {
                     "%d.%03d сек", duration / 1000, duration % 1000));
 
             holder.itemView.setOnClickListener(v -> {
-                presetRepository.setCurrentPresetId(preset.getId());
-                finish();
+                // План компилируется заранее, чтобы Play запускался без задержки
+                PlanCache.getInstance().precompileAsync(presetRepository, preset.getId(),
+                        PlaybackOptions.load(PresetListActivity.this));
+                presetRepository.setCurrentPresetIdAsync(preset.getId(), result -> finish());
             });
 
             holder.itemView.setOnLongClickListener(v -> {
@@ -104,7 +123,7 @@ public class PresetListActivity extends AppCompatActivity {
         }
     }
 
-    private void showPresetOptionsDialog(Preset preset) {
+    private void showPresetOptionsDialog(PresetSummary preset) {
         androidx.appcompat.app.AlertDialog.Builder builder =
                 new androidx.appcompat.app.AlertDialog.Builder(this);
         builder.setTitle(preset.getName());
@@ -113,8 +132,7 @@ public class PresetListActivity extends AppCompatActivity {
         builder.setItems(options, (dialog, which) -> {
             if (which == 0) {
                 // Удаление
-                presetRepository.deletePreset(preset.getId());
-                loadPresets();
+                presetRepository.deletePresetAsync(preset.getId(), result -> loadPresets());
             } else if (which == 1) {
                 // Переименование
                 renamePreset(preset);
@@ -124,7 +142,7 @@ public class PresetListActivity extends AppCompatActivity {
         builder.show();
     }
 
-    private void renamePreset(Preset preset) {
+    private void renamePreset(PresetSummary preset) {
         androidx.appcompat.app.AlertDialog.Builder builder =
                 new androidx.appcompat.app.AlertDialog.Builder(this);
         builder.setTitle("Переименовать");
@@ -137,9 +155,7 @@ public class PresetListActivity extends AppCompatActivity {
         builder.setPositiveButton("Сохранить", (dialog, which) -> {
             String newName = input.getText().toString().trim();
             if (!newName.isEmpty()) {
-                preset.setName(newName);
-                presetRepository.savePreset(preset);
-                loadPresets();
+                presetRepository.renamePresetAsync(preset.getId(), newName, result -> loadPresets());
             }
         });
 
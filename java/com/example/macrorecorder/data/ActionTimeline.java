@@ -0,0 +1,153 @@
+package com.example.macrorecorder.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Действия пресета в виде примитивных массивов, готовых к воспроизведению.
+// Время — микросекунды от начала записи по монотонным часам (TimelineClock).
+// Задержка не хранится, а вычисляется по соседним меткам времени.
+// Траектории и длительности есть только у штрихов; без штрихов эти столбцы null.
+// У ожиданий в столбце длительностей хранится таймаут, условие и view id —
+// в своих столбцах, которые без ожиданий тоже null. Описания нажатых view
+// (ViewIdentity) — в отдельном столбце, null для записей без них.
+public final class ActionTimeline {
+    private final int size;
+    private final int[] types;
+    private final float[] xs;
+    private final float[] ys;
+    private final long[] timestamps;
+    private final float[][] points;
+    private final long[] durations;
+    private final int[] waitConditions;
+    private final String[] viewIds;
+    private final ViewIdentity[] views;
+
+    public ActionTimeline(int[] types, float[] xs, float[] ys, long[] timestamps, int size) {
+        this(types, xs, ys, timestamps, null, null, size);
+    }
+
+    public ActionTimeline(int[] types, float[] xs, float[] ys, long[] timestamps,
+                          float[][] points, long[] durations, int size) {
+        this(types, xs, ys, timestamps, points, durations, null, null, null, size);
+    }
+
+    public ActionTimeline(int[] types, float[] xs, float[] ys, long[] timestamps, float[][] points,
+                          long[] durations, int[] waitConditions, String[] viewIds, ViewIdentity[] views,
+                          int size) {
+        this.types = types;
+        this.xs = xs;
+        this.ys = ys;
+        this.timestamps = timestamps;
+        this.points = points;
+        this.durations = durations;
+        this.waitConditions = waitConditions;
+        this.viewIds = viewIds;
+        this.views = views;
+        this.size = size;
+    }
+
+    public static ActionTimeline fromActions(List<MacroAction> actions) {
+        int size = actions != null ? actions.size() : 0;
+        int[] types = new int[size];
+        float[] xs = new float[size];
+        float[] ys = new float[size];
+        long[] timestamps = new long[size];
+        float[][] points = null;
+        long[] durations = null;
+        int[] waitConditions = null;
+        String[] viewIds = null;
+        ViewIdentity[] views = null;
+        for (int i = 0; i < size; i++) {
+            MacroAction action = actions.get(i);
+            types[i] = action.getEventType();
+            xs[i] = action.getX();
+            ys[i] = action.getY();
+            timestamps[i] = action.getTimestampMicros();
+            if (action.getPoints() != null || action.getEventType() == MacroAction.TYPE_WAIT) {
+                if (points == null) {
+                    points = new float[size][];
+                    durations = new long[size];
+                }
+                points[i] = action.getPoints();
+                durations[i] = action.getDurationMicros();
+            }
+            if (action.getEventType() == MacroAction.TYPE_WAIT) {
+                if (waitConditions == null) {
+                    waitConditions = new int[size];
+                    viewIds = new String[size];
+                }
+                waitConditions[i] = action.getWaitCondition();
+                viewIds[i] = action.getViewId();
+            }
+            ViewIdentity identity = action.getViewIdentity();
+            if (identity != null) {
+                if (views == null) {
+                    views = new ViewIdentity[size];
+                }
+                views[i] = identity;
+            }
+        }
+        return new ActionTimeline(types, xs, ys, timestamps, points, durations, waitConditions, viewIds,
+                views, size);
+    }
+
+    public List<MacroAction> toActions() {
+        List<MacroAction> actions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            MacroAction action = new MacroAction(types[i], xs[i], ys[i], 0);
+            action.setTimestampMicros(timestamps[i]);
+            action.setDelay(getDelayMicros(i) / 1000);
+            if (points != null && points[i] != null) {
+                action.setPoints(points[i]);
+            }
+            if (durations != null) {
+                action.setDurationMicros(durations[i]);
+            }
+            if (waitConditions != null && types[i] == MacroAction.TYPE_WAIT) {
+                action.setWaitCondition(waitConditions[i]);
+                action.setViewId(viewIds[i]);
+            }
+            if (views != null && views[i] != null) {
+                action.setViewIdentity(views[i]);
+            }
+            actions.add(action);
+        }
+        return actions;
+    }
+
+    public int size() { return size; }
+
+    public int getType(int index) { return types[index]; }
+
+    public float getX(int index) { return xs[index]; }
+
+    public float getY(int index) { return ys[index]; }
+
+    public long getTimestampMicros(int index) { return timestamps[index]; }
+
+    // Точки траектории штриха (x0, y0, x1, y1, ...) или null
+    public float[] getPoints(int index) { return points != null ? points[index] : null; }
+
+    public long getStrokeDurationMicros(int index) { return durations != null ? durations[index] : 0; }
+
+    public long getWaitTimeoutMicros(int index) { return durations != null ? durations[index] : 0; }
+
+    public int getWaitCondition(int index) { return waitConditions != null ? waitConditions[index] : 0; }
+
+    public String getViewId(int index) { return viewIds != null ? viewIds[index] : null; }
+
+    public ViewIdentity getViewIdentity(int index) { return views != null ? views[index] : null; }
+
+    public long getDelayMicros(int index) {
+        return index > 0 ? timestamps[index] - timestamps[index - 1] : 0;
+    }
+
+    public long getDurationMicros() {
+        return size > 0 ? timestamps[size - 1] - timestamps[0] : 0;
+    }
+
+    // Длительность в миллисекундах — для отображения
+    public long getDuration() {
+        return getDurationMicros() / 1000;
+    }
+}
@@ -3,6 +3,20 @@ package com.example.macrorecorder.data;
 import com.google.gson.annotations.SerializedName;
 
 public class MacroAction {
+    // Типы действий
+    public static final int TYPE_CLICK = 0;
+    public static final int TYPE_LONG_CLICK = 1;
+    public static final int TYPE_TOUCH_DOWN = 2; // начало записи
+    public static final int TYPE_TOUCH_UP = 3; // окончание записи
+    public static final int TYPE_STROKE = 4; // свайп/прокрутка по траектории points за duration
+    public static final int TYPE_WAIT = 5; // ожидание состояния UI не дольше duration
+
+    // Условия ожидания TYPE_WAIT
+    public static final int WAIT_CONTENT_CHANGED = 0; // содержимое окна изменилось
+    public static final int WAIT_VIEW_APPEARED = 1; // появилось view с viewId
+    public static final int WAIT_IDLE = 2; // UI перестал меняться
+    public static final int WAIT_SETTLED = 3; // UI изменился и перестал меняться
+
     @SerializedName("event_type")
     private int eventType; // MotionEvent.ACTION_DOWN, ACTION_UP и т.д.
 
@@ -13,16 +27,41 @@ public class MacroAction {
     private float y;
 
     @SerializedName("timestamp")
-    private long timestamp;
+    private long timestamp; // Время от начала записи (мс), для старых пресетов и экспорта
+
+    @SerializedName("timestamp_us")
+    private long timestampMicros; // Время от начала записи по монотонным часам (мкс)
 
     @SerializedName("delay")
     private long delay; // Задержка после предыдущего события (мс)
 
+    @SerializedName("points")
+    private float[] points; // Точки траектории штриха: x0, y0, x1, y1, ...
+
+    @SerializedName("duration_us")
+    private long durationMicros; // Длительность штриха или таймаут ожидания (мкс)
+
+    @SerializedName("wait_condition")
+    private int waitCondition; // Условие ожидания (WAIT_*)
+
+    @SerializedName("view_id")
+    private String viewId; // Resource id нажатого или ожидаемого view, например "com.app:id/button"
+
+    @SerializedName("view_class")
+    private String viewClassName; // Класс нажатого view
+
+    @SerializedName("view_text")
+    private String viewText; // Текст нажатого view
+
+    @SerializedName("view_path")
+    private int[] viewPath; // Индексы среди детей родителя от корня окна до нажатого view
+
     public MacroAction(int eventType, float x, float y, long timestamp) {
         this.eventType = eventType;
         this.x = x;
         this.y = y;
         this.timestamp = timestamp;
+        this.timestampMicros = timestamp * 1000;
     }
 
     // Геттеры и сеттеры
@@ -36,8 +75,48 @@ public class MacroAction {
     public void setY(float y) { this.y = y; }
 
     public long getTimestamp() { return timestamp; }
-    public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+    public void setTimestamp(long timestamp) { this.timestamp = timestamp; this.timestampMicros = timestamp * 1000; }
+
+    // В пресетах, сохраненных до появления timestamp_us, есть только миллисекунды
+    public long getTimestampMicros() { return timestampMicros != 0 || timestamp == 0 ? timestampMicros : timestamp * 1000; }
+    public void setTimestampMicros(long timestampMicros) { this.timestampMicros = timestampMicros; this.timestamp = timestampMicros / 1000; }
 
     public long getDelay() { return delay; }
     public void setDelay(long delay) { this.delay = delay; }
+
+    public float[] getPoints() { return points; }
+    public void setPoints(float[] points) { this.points = points; }
+
+    public long getDurationMicros() { return durationMicros; }
+    public void setDurationMicros(long durationMicros) { this.durationMicros = durationMicros; }
+
+    public int getWaitCondition() { return waitCondition; }
+    public void setWaitCondition(int waitCondition) { this.waitCondition = waitCondition; }
+
+    public String getViewId() { return viewId; }
+    public void setViewId(String viewId) { this.viewId = viewId; }
+
+    public String getViewClassName() { return viewClassName; }
+    public void setViewClassName(String viewClassName) { this.viewClassName = viewClassName; }
+
+    public String getViewText() { return viewText; }
+    public void setViewText(String viewText) { this.viewText = viewText; }
+
+    public int[] getViewPath() { return viewPath; }
+    public void setViewPath(int[] viewPath) { this.viewPath = viewPath; }
+
+    // Описание нажатого view или null, если оно не записано
+    public ViewIdentity getViewIdentity() {
+        if (eventType == TYPE_WAIT || (viewId == null && viewClassName == null && viewPath == null)) {
+            return null;
+        }
+        return new ViewIdentity(viewId, viewClassName, viewText, viewPath);
+    }
+
+    public void setViewIdentity(ViewIdentity identity) {
+        viewId = identity != null ? identity.getResourceId() : null;
+        viewClassName = identity != null ? identity.getClassName() : null;
+        viewText = identity != null ? identity.getText() : null;
+        viewPath = identity != null ? identity.getIndexPath() : null;
+    }
 }
\ No newline at end of file
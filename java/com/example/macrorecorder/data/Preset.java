@@ -16,6 +16,9 @@ public class Preset {
     @SerializedName("actions")
     private List<MacroAction> actions;
 
+    // Примитивное представление действий; не попадает в JSON
+    private transient ActionTimeline timeline;
+
     public Preset(String id, String name, long dateCreated, List<MacroAction> actions) {
         this.id = id;
         this.name = name;
@@ -23,6 +26,13 @@ public class Preset {
         this.actions = actions;
     }
 
+    public Preset(String id, String name, long dateCreated, ActionTimeline timeline) {
+        this.id = id;
+        this.name = name;
+        this.dateCreated = dateCreated;
+        this.timeline = timeline;
+    }
+
     // Геттеры и сеттеры
     public String getId() { return id; }
     public void setId(String id) { this.id = id; }
@@ -33,14 +43,33 @@ public class Preset {
     public long getDateCreated() { return dateCreated; }
     public void setDateCreated(long dateCreated) { this.dateCreated = dateCreated; }
 
-    public List<MacroAction> getActions() { return actions; }
-    public void setActions(List<MacroAction> actions) { this.actions = actions; }
+    // Список действий создается из timeline только по требованию (например, для экспорта)
+    public List<MacroAction> getActions() {
+        if (actions == null && timeline != null) {
+            actions = timeline.toActions();
+        }
+        return actions;
+    }
+
+    public void setActions(List<MacroAction> actions) {
+        this.actions = actions;
+        this.timeline = null;
+    }
+
+    public ActionTimeline getTimeline() {
+        if (timeline == null) {
+            timeline = ActionTimeline.fromActions(actions);
+        }
+        return timeline;
+    }
+
+    public int getActionCount() {
+        if (timeline != null) return timeline.size();
+        return actions != null ? actions.size() : 0;
+    }
 
     // Вспомогательный метод для получения длительности
     public long getDuration() {
-        if (actions == null || actions.isEmpty()) return 0;
-        long first = actions.get(0).getTimestamp();
-        long last = actions.get(actions.size() - 1).getTimestamp();
-        return last - first;
+        return getTimeline().getDuration();
     }
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+package com.example.macrorecorder.data;
+
+import com.google.gson.annotations.SerializedName;
+import java.util.Collections;
+import java.util.List;
+
+// Краткая информация о пресете для индекса (без списка действий)
+public class PresetSummary {
+    @SerializedName("id")
+    private String id;
+
+    @SerializedName("name")
+    private String name;
+
+    @SerializedName("date_created")
+    private long dateCreated;
+
+    @SerializedName("duration")
+    private long duration;
+
+    @SerializedName("action_count")
+    private int actionCount;
+
+    @SerializedName("tags")
+    private List<String> tags;
+
+    public PresetSummary(String id, String name, long dateCreated, long duration, int actionCount) {
+        this.id = id;
+        this.name = name;
+        this.dateCreated = dateCreated;
+        this.duration = duration;
+        this.actionCount = actionCount;
+    }
+
+    public PresetSummary(PresetSummary other) {
+        this(other.id, other.name, other.dateCreated, other.duration, other.actionCount);
+        this.tags = other.tags;
+    }
+
+    public static PresetSummary from(Preset preset) {
+        return new PresetSummary(preset.getId(), preset.getName(), preset.getDateCreated(),
+                preset.getDuration(), preset.getActionCount());
+    }
+
+    // Геттеры и сеттеры
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getName() { return name; }
+    public void setName(String name) { this.name = name; }
+
+    public long getDateCreated() { return dateCreated; }
+    public void setDateCreated(long dateCreated) { this.dateCreated = dateCreated; }
+
+    public long getDuration() { return duration; }
+    public void setDuration(long duration) { this.duration = duration; }
+
+    public int getActionCount() { return actionCount; }
+    public void setActionCount(int actionCount) { this.actionCount = actionCount; }
+
+    public List<String> getTags() { return tags != null ? tags : Collections.emptyList(); }
+    public void setTags(List<String> tags) { this.tags = tags; }
+}
@@ -0,0 +1,20 @@
+package com.example.macrorecorder.data;
+
+// Часы временной шкалы макроса: монотонные, в микросекундах.
+//
+// System.nanoTime() и время событий (SystemClock.uptimeMillis) на Android
+// идут от одного источника CLOCK_MONOTONIC, поэтому время события можно
+// напрямую сравнивать с моментом начала записи. Часы не зависят от
+// перевода системного времени и синхронизации по NTP.
+public final class TimelineClock {
+    private TimelineClock() {}
+
+    public static long nowMicros() {
+        return System.nanoTime() / 1000;
+    }
+
+    // Время события доступности в шкале nowMicros(); 0 — время неизвестно
+    public static long eventTimeMicros(long eventTimeMillis) {
+        return eventTimeMillis > 0 ? eventTimeMillis * 1000 : nowMicros();
+    }
+}
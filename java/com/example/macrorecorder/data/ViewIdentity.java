@@ -0,0 +1,28 @@
+package com.example.macrorecorder.data;
+
+// Описание view, по которому действие было записано: resource id, класс,
+// текст и путь индексов дочерних элементов от корня окна. По нему при
+// воспроизведении находится тот же view, даже если он сместился.
+public final class ViewIdentity {
+    private final String resourceId;
+    private final String className;
+    private final String text;
+    private final int[] indexPath;
+
+    public ViewIdentity(String resourceId, String className, String text, int[] indexPath) {
+        this.resourceId = resourceId;
+        this.className = className;
+        this.text = text;
+        this.indexPath = indexPath;
+    }
+
+    // Например "com.app:id/button" или null
+    public String getResourceId() { return resourceId; }
+
+    public String getClassName() { return className; }
+
+    public String getText() { return text; }
+
+    // Индекс среди детей родителя для каждого уровня от корня; null — путь неизвестен
+    public int[] getIndexPath() { return indexPath; }
+}
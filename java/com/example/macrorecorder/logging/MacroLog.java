@@ -0,0 +1,148 @@
+package com.example.macrorecorder.logging;
+
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+
+// Логирование записи и воспроизведения. Уровень задается во время работы
+// для каждой подсистемы; вызовы с выключенным уровнем не строят строк.
+// На горячем пути сообщение собирается только под проверкой isEnabled()
+// или через перегрузки с примитивными аргументами.
+//
+// Подробная трассировка пишет бинарные записи в кольцевой буфер,
+// который фоновый поток сбрасывает в файл.
+public final class MacroLog {
+    // Подсистемы
+    public static final int SERVICE = 0;
+    public static final int RECORDER = 1;
+    public static final int PLAYER = 2;
+    private static final String[] TAGS = {"MacroAccessibilityService", "MacroRecorder", "MacroPlayer"};
+
+    // Уровни совпадают с android.util.Log
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int NONE = Integer.MAX_VALUE;
+
+    // События трассировки
+    public static final int TRACE_CAPTURE = 1;
+    public static final int TRACE_RECORDED = 2;
+    public static final int TRACE_DISPATCH = 3;
+    public static final int TRACE_GESTURE_COMPLETED = 4;
+    public static final int TRACE_GESTURE_CANCELLED = 5;
+
+    // Отладочный вывод включается без пересборки: adb shell setprop log.tag.MacroLog DEBUG
+    private static final String PROPERTY_TAG = "MacroLog";
+
+    // Массив заменяется целиком при смене уровня, читатели не блокируются
+    private static volatile int[] levels = defaultLevels();
+    private static volatile TraceSink traceSink;
+
+    private MacroLog() {}
+
+    public static boolean isEnabled(int subsystem, int level) {
+        return level >= levels[subsystem];
+    }
+
+    public static synchronized void setLevel(int subsystem, int level) {
+        int[] updated = levels.clone();
+        updated[subsystem] = level;
+        levels = updated;
+    }
+
+    public static void d(int subsystem, String message) {
+        if (isEnabled(subsystem, DEBUG)) {
+            Log.d(TAGS[subsystem], message);
+        }
+    }
+
+    public static void d(int subsystem, String message, long value) {
+        if (isEnabled(subsystem, DEBUG)) {
+            Log.d(TAGS[subsystem], message + value);
+        }
+    }
+
+    public static void d(int subsystem, String message, float x, float y) {
+        if (isEnabled(subsystem, DEBUG)) {
+            Log.d(TAGS[subsystem], message + " (" + x + ", " + y + ")");
+        }
+    }
+
+    public static void i(int subsystem, String message) {
+        if (isEnabled(subsystem, INFO)) {
+            Log.i(TAGS[subsystem], message);
+        }
+    }
+
+    public static void w(int subsystem, String message) {
+        if (isEnabled(subsystem, WARN)) {
+            Log.w(TAGS[subsystem], message);
+        }
+    }
+
+    public static void w(int subsystem, String message, float x, float y) {
+        if (isEnabled(subsystem, WARN)) {
+            Log.w(TAGS[subsystem], message + " (" + x + ", " + y + ")");
+        }
+    }
+
+    public static void e(int subsystem, String message) {
+        if (isEnabled(subsystem, ERROR)) {
+            Log.e(TAGS[subsystem], message);
+        }
+    }
+
+    public static void e(int subsystem, String message, Throwable error) {
+        if (isEnabled(subsystem, ERROR)) {
+            Log.e(TAGS[subsystem], message + ": " + error.getMessage());
+        }
+    }
+
+    public static boolean isTracing() {
+        return traceSink != null;
+    }
+
+    // Бинарная запись события трассировки; без включенной трассировки ничего не делает
+    public static void trace(int subsystem, int event, long a, long b) {
+        TraceSink sink = traceSink;
+        if (sink != null) {
+            sink.record(subsystem, event, a, b);
+        }
+    }
+
+    public static synchronized void startTracing(File file) {
+        if (traceSink != null) {
+            return;
+        }
+        try {
+            traceSink = TraceSink.open(file);
+            Log.i(PROPERTY_TAG, "Трассировка включена: " + file);
+        } catch (IOException e) {
+            Log.e(PROPERTY_TAG, "Не удалось включить трассировку: " + e.getMessage());
+        }
+    }
+
+    public static synchronized void stopTracing() {
+        TraceSink sink = traceSink;
+        traceSink = null;
+        if (sink != null) {
+            sink.close();
+        }
+    }
+
+    // Включена ли трассировка через системное свойство log.tag.MacroLog
+    public static boolean isTracingRequested() {
+        return Log.isLoggable(PROPERTY_TAG, Log.VERBOSE);
+    }
+
+    private static int[] defaultLevels() {
+        int level = Log.isLoggable(PROPERTY_TAG, Log.DEBUG) ? DEBUG : INFO;
+        int[] result = new int[TAGS.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = level;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.macrorecorder.logging;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Кольцевой буфер бинарных записей трассировки. Писать могут любые потоки
+// без блокировок; фоновый поток периодически сбрасывает новые записи в файл.
+// Если поток записи не успевает, старые записи перезаписываются и теряются.
+//
+// Формат файла: магическое число, затем записи по 4 long:
+// время (нс), подсистема << 16 | событие, a, b.
+final class TraceSink {
+    private static final int MAGIC = 0x4D545243; // "MTRC"
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    // Слот: номер записи + 1 (0 — пусто, -1 — заполняется), время, событие, a, b
+    private static final int SLOT_LONGS = 5;
+    private static final int RECORD_BYTES = 4 * 8;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final AtomicLongArray slots = new AtomicLongArray(CAPACITY * SLOT_LONGS);
+    private final AtomicLong next = new AtomicLong();
+    private final FileChannel channel;
+    private final ByteBuffer output = ByteBuffer.allocate(RECORD_BYTES * 256);
+    private final Thread writer;
+    private volatile boolean running = true;
+    private long readSequence;
+    private long lost;
+
+    private TraceSink(FileChannel channel) {
+        this.channel = channel;
+        writer = new Thread(this::run, "MacroTrace");
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.setDaemon(true);
+    }
+
+    static TraceSink open(File file) throws IOException {
+        FileChannel channel = new FileOutputStream(file).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(MAGIC).flip();
+        channel.write(header);
+        TraceSink sink = new TraceSink(channel);
+        sink.writer.start();
+        return sink;
+    }
+
+    void record(int subsystem, int event, long a, long b) {
+        long sequence = next.getAndIncrement();
+        int base = (int) (sequence & MASK) * SLOT_LONGS;
+        slots.set(base, -1);
+        slots.lazySet(base + 1, System.nanoTime());
+        slots.lazySet(base + 2, ((long) subsystem << 16) | event);
+        slots.lazySet(base + 3, a);
+        slots.lazySet(base + 4, b);
+        // Публикация: номер записывается последним
+        slots.lazySet(base, sequence + 1);
+    }
+
+    void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+                flush();
+            }
+            flush();
+        } catch (IOException e) {
+            Log.e("MacroLog", "Ошибка записи трассировки: " + e.getMessage());
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e("MacroLog", "Ошибка закрытия трассировки: " + e.getMessage());
+            }
+            if (lost > 0) {
+                Log.w("MacroLog", "Потеряно записей трассировки: " + lost);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        long end = next.get();
+        if (end - readSequence > CAPACITY) {
+            // Буфер успел обернуться — самые старые записи уже перезаписаны
+            lost += end - CAPACITY - readSequence;
+            readSequence = end - CAPACITY;
+        }
+
+        while (readSequence < end) {
+            int base = (int) (readSequence & MASK) * SLOT_LONGS;
+            long stamp = slots.get(base);
+            if (stamp == -1 || stamp == 0 || stamp < readSequence + 1) {
+                // Запись еще не опубликована — заберем при следующем сбросе
+                break;
+            }
+            if (stamp == readSequence + 1) {
+                long time = slots.get(base + 1);
+                long event = slots.get(base + 2);
+                long a = slots.get(base + 3);
+                long b = slots.get(base + 4);
+                // Если слот перезаписали во время чтения, запись отбрасываем
+                if (slots.get(base) == stamp) {
+                    if (output.remaining() < RECORD_BYTES) {
+                        writeOutput();
+                    }
+                    output.putLong(time).putLong(event).putLong(a).putLong(b);
+                } else {
+                    lost++;
+                }
+            } else {
+                lost++;
+            }
+            readSequence++;
+        }
+        writeOutput();
+    }
+
+    private void writeOutput() throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            channel.write(output);
+        }
+        output.clear();
+    }
+}
@@ -0,0 +1,303 @@
+package com.example.macrorecorder.playback;
+
+import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.GestureDescription;
+import android.os.Handler;
+import android.os.HandlerThread;
+import com.example.macrorecorder.logging.MacroLog;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Очередь жестов с учетом завершения.
+//
+// Новый dispatchGesture отменяет жест, который еще выполняется, поэтому
+// следующий жест отправляется только после onCompleted/onCancelled
+// предыдущего. Колбэки приходят на отдельный поток, а не в главный.
+// Отмененный системой жест повторяется по RetryPolicy. По выполненным
+// жестам обновляется оценка задержки для планировщика.
+//
+// Шаг с описанием view сначала передается TargetHandler: если view
+// сместился, он нажимается действием доступности вместо жеста.
+//
+// Текущий жест меняется только на потоке колбэков, очередь защищена queueLock.
+//
+// cancelPending() начинает новую эпоху: шаги, поставленные в прежней эпохе,
+// колбэки и повторы их жестов отбрасываются, даже если поток воспроизведения
+// успел поставить шаг уже после отмены.
+public final class GesturePipeline {
+    public static final class RetryPolicy {
+        public final int maxRetries;
+        public final long retryDelayMs;
+
+        public RetryPolicy(int maxRetries, long retryDelayMs) {
+            this.maxRetries = maxRetries;
+            this.retryDelayMs = retryDelayMs;
+        }
+    }
+
+    // Вызывается на потоке колбэков перед отправкой жеста шага с getTarget() != null
+    public interface TargetHandler {
+        // true — view нажат действием доступности, жест не нужен
+        boolean performTarget(PlaybackPlan plan, int step);
+    }
+
+    public static final RetryPolicy NO_RETRY = new RetryPolicy(0, 0);
+    public static final RetryPolicy DEFAULT_RETRY = new RetryPolicy(2, 50);
+
+    private static final int INITIAL_QUEUE_CAPACITY = 64;
+
+    private final AccessibilityService service;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final LatencyEstimator latencyEstimator = new LatencyEstimator();
+    private final AccessibilityService.GestureResultCallback callback = new AccessibilityService.GestureResultCallback() {
+        @Override
+        public void onCompleted(GestureDescription gestureDescription) {
+            onGestureFinished(gestureDescription, true);
+        }
+
+        @Override
+        public void onCancelled(GestureDescription gestureDescription) {
+            onGestureFinished(gestureDescription, false);
+        }
+    };
+    // Задачи создаются один раз: отправка шага плана ничего не выделяет
+    private final Runnable dispatchNextTask = this::dispatchNext;
+    private final Runnable retryTask = this::retry;
+
+    // Очередь шагов планов: кольцевой буфер, растет только при переполнении.
+    // Пополняется потоком воспроизведения, разбирается потоком колбэков.
+    private final Object queueLock = new Object();
+    private PlaybackPlan[] queuedPlans = new PlaybackPlan[INITIAL_QUEUE_CAPACITY];
+    private int[] queuedSteps = new int[INITIAL_QUEUE_CAPACITY];
+    private int[] queuedEpochs = new int[INITIAL_QUEUE_CAPACITY];
+    private int queueHead;
+    private int queueSize;
+
+    // Шаг, который выполняется или ждет повтора; пока он есть, очередь стоит
+    private PlaybackPlan inFlightPlan;
+    private int inFlightStep;
+    private int inFlightEpoch;
+    private int attempts;
+    private long dispatchNanos;
+    private boolean isWaitingForRetry;
+    private volatile RetryPolicy retryPolicy = DEFAULT_RETRY;
+    private volatile TargetHandler targetHandler;
+    private volatile int epoch;
+
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final AtomicInteger cancelledCount = new AtomicInteger();
+    private final AtomicInteger retriedCount = new AtomicInteger();
+    private final AtomicInteger rejectedCount = new AtomicInteger();
+
+    public GesturePipeline(AccessibilityService service) {
+        this.service = service;
+        thread = new HandlerThread("MacroGestures");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    // Текущая эпоха; берется при запуске воспроизведения и передается в submit()
+    public int getEpoch() {
+        return epoch;
+    }
+
+    // Ставит в очередь жест шага step плана plan; шаг прежней эпохи отбрасывается
+    public void submit(PlaybackPlan plan, int step, int stepEpoch) {
+        synchronized (queueLock) {
+            if (stepEpoch != epoch) {
+                return;
+            }
+            if (queueSize == queuedPlans.length) {
+                growQueue();
+            }
+            int tail = (queueHead + queueSize) % queuedPlans.length;
+            queuedPlans[tail] = plan;
+            queuedSteps[tail] = step;
+            queuedEpochs[tail] = stepEpoch;
+            queueSize++;
+        }
+        handler.post(dispatchNextTask);
+    }
+
+    // Отбрасывает жесты, еще не отправленные системе, отложенные повторы и
+    // результат выполняющегося жеста: отмененный им жест не повторяется
+    public void cancelPending() {
+        synchronized (queueLock) {
+            epoch++;
+            clearQueue();
+        }
+        handler.post(() -> {
+            handler.removeCallbacks(retryTask);
+            inFlightPlan = null;
+            isWaitingForRetry = false;
+            // Следующая эпоха могла поставить шаги, пока выполнялся прежний жест
+            dispatchNext();
+        });
+    }
+
+    public void setRetryPolicy(RetryPolicy policy) {
+        retryPolicy = policy != null ? policy : NO_RETRY;
+    }
+
+    public void setTargetHandler(TargetHandler handler) {
+        targetHandler = handler;
+    }
+
+    public LatencyEstimator getLatencyEstimator() {
+        return latencyEstimator;
+    }
+
+    public int getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public int getCancelledCount() {
+        return cancelledCount.get();
+    }
+
+    public int getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    public int getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public void resetStats() {
+        completedCount.set(0);
+        cancelledCount.set(0);
+        retriedCount.set(0);
+        rejectedCount.set(0);
+    }
+
+    public void quit() {
+        thread.quitSafely();
+    }
+
+    private void growQueue() {
+        int capacity = queuedPlans.length;
+        PlaybackPlan[] plans = new PlaybackPlan[capacity * 2];
+        int[] steps = new int[capacity * 2];
+        int[] epochs = new int[capacity * 2];
+        for (int i = 0; i < queueSize; i++) {
+            plans[i] = queuedPlans[(queueHead + i) % capacity];
+            steps[i] = queuedSteps[(queueHead + i) % capacity];
+            epochs[i] = queuedEpochs[(queueHead + i) % capacity];
+        }
+        queuedPlans = plans;
+        queuedSteps = steps;
+        queuedEpochs = epochs;
+        queueHead = 0;
+    }
+
+    private void clearQueue() {
+        synchronized (queueLock) {
+            for (int i = 0; i < queueSize; i++) {
+                queuedPlans[(queueHead + i) % queuedPlans.length] = null;
+            }
+            queueHead = 0;
+            queueSize = 0;
+        }
+    }
+
+    private void dispatchNext() {
+        if (inFlightPlan != null) {
+            return;
+        }
+        synchronized (queueLock) {
+            if (queueSize == 0) {
+                return;
+            }
+            inFlightPlan = queuedPlans[queueHead];
+            inFlightStep = queuedSteps[queueHead];
+            inFlightEpoch = queuedEpochs[queueHead];
+            queuedPlans[queueHead] = null;
+            queueHead = (queueHead + 1) % queuedPlans.length;
+            queueSize--;
+        }
+        attempts = 0;
+        dispatch();
+    }
+
+    private void dispatch() {
+        isWaitingForRetry = false;
+        attempts++;
+        dispatchNanos = System.nanoTime();
+        int kind = inFlightPlan.getKind(inFlightStep);
+        MacroLog.trace(MacroLog.PLAYER, MacroLog.TRACE_DISPATCH, kind, attempts);
+        TargetHandler handlerForTarget = targetHandler;
+        if (handlerForTarget != null && inFlightPlan.getTarget(inFlightStep) != null
+                && handlerForTarget.performTarget(inFlightPlan, inFlightStep)) {
+            inFlightPlan = null;
+            completedCount.incrementAndGet();
+            MacroLog.trace(MacroLog.PLAYER, MacroLog.TRACE_GESTURE_COMPLETED, kind, attempts);
+            dispatchNext();
+            return;
+        }
+        GestureDescription gesture = inFlightPlan.getGesture(inFlightStep);
+        if (gesture == null) {
+            // Касание без координат, а view не найден: возможно, он еще не появился
+            rejectedCount.incrementAndGet();
+            MacroLog.w(MacroLog.PLAYER, "View касания не найден");
+            retryOrContinue();
+            return;
+        }
+        if (!service.dispatchGesture(gesture, callback, handler)) {
+            // Система не приняла жест (например, сервис отключается)
+            rejectedCount.incrementAndGet();
+            MacroLog.w(MacroLog.PLAYER, "Жест не принят системой");
+            retryOrContinue();
+        }
+    }
+
+    private void onGestureFinished(GestureDescription gesture, boolean completed) {
+        PlaybackPlan plan = inFlightPlan;
+        if (plan == null || plan.getGesture(inFlightStep) != gesture || isWaitingForRetry) {
+            return;
+        }
+        if (inFlightEpoch != epoch) {
+            // Воспроизведение остановлено: жест не повторяем, очередь уже новой эпохи
+            inFlightPlan = null;
+            dispatchNext();
+            return;
+        }
+        int kind = plan.getKind(inFlightStep);
+        if (completed) {
+            inFlightPlan = null;
+            completedCount.incrementAndGet();
+            long durationNanos = plan.getDurationMs(inFlightStep) * 1_000_000L;
+            latencyEstimator.addSample(kind, System.nanoTime() - dispatchNanos - durationNanos);
+            MacroLog.trace(MacroLog.PLAYER, MacroLog.TRACE_GESTURE_COMPLETED, kind, attempts);
+            dispatchNext();
+        } else {
+            cancelledCount.incrementAndGet();
+            MacroLog.trace(MacroLog.PLAYER, MacroLog.TRACE_GESTURE_CANCELLED, kind, attempts);
+            MacroLog.w(MacroLog.PLAYER, "Жест отменен системой");
+            retryOrContinue();
+        }
+    }
+
+    private void retryOrContinue() {
+        RetryPolicy policy = retryPolicy;
+        if (attempts > policy.maxRetries) {
+            inFlightPlan = null;
+            dispatchNext();
+            return;
+        }
+
+        retriedCount.incrementAndGet();
+        if (policy.retryDelayMs <= 0) {
+            dispatch();
+            return;
+        }
+        // Слот занят повтором, чтобы следующие жесты не обогнали его
+        isWaitingForRetry = true;
+        handler.postDelayed(retryTask, policy.retryDelayMs);
+    }
+
+    private void retry() {
+        if (isWaitingForRetry && inFlightPlan != null && inFlightEpoch == epoch) {
+            dispatch();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.macrorecorder.playback;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Скользящая оценка задержки жестов по типу действия (клик, долгий клик, штрих).
+//
+// Задержка — время от dispatchGesture до onCompleted за вычетом длительности
+// самого штриха. Оценка — экспоненциальное среднее, поэтому она следует
+// за нагрузкой устройства, но не дергается от единичных выбросов.
+public final class LatencyEstimator {
+    private static final int MAX_KIND = 8;
+    // Вес нового замера в среднем (1/4)
+    private static final int SMOOTHING_SHIFT = 2;
+    // Больше этого раньше срока жесты не отправляются
+    private static final long MAX_ESTIMATE_NANOS = 100_000_000L;
+
+    // Оценка в наносекундах; -1 — замеров еще не было
+    private final AtomicLongArray estimates = new AtomicLongArray(MAX_KIND);
+
+    public LatencyEstimator() {
+        for (int i = 0; i < MAX_KIND; i++) {
+            estimates.set(i, -1);
+        }
+    }
+
+    // Вызывается на потоке колбэков жестов
+    public void addSample(int kind, long latencyNanos) {
+        if (kind < 0 || kind >= MAX_KIND) {
+            return;
+        }
+        long sample = Math.max(0, Math.min(latencyNanos, MAX_ESTIMATE_NANOS));
+        long current = estimates.get(kind);
+        long updated = current < 0 ? sample : current + ((sample - current) >> SMOOTHING_SHIFT);
+        estimates.set(kind, updated);
+    }
+
+    // Насколько раньше срока отправлять жест этого типа
+    public long getEstimateNanos(int kind) {
+        if (kind < 0 || kind >= MAX_KIND) {
+            return 0;
+        }
+        return Math.max(0, estimates.get(kind));
+    }
+}
@@ -0,0 +1,299 @@
+package com.example.macrorecorder.playback;
+
+import android.accessibilityservice.AccessibilityService;
+import android.graphics.Rect;
+import android.util.LruCache;
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.example.macrorecorder.data.ViewIdentity;
+import com.example.macrorecorder.logging.MacroLog;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Индекс узлов окна по resource id для поиска нажимаемых view.
+//
+// Дерево окна обходится один раз, дальше цель шага находится по id без
+// обхода. Кандидаты выбираются по состоянию на момент обхода, через refresh()
+// обновляется только выбранный. Корень активного окна тоже переиспользуется
+// и обновляется, только если после его получения приходили события UI.
+// Индекс окна и корень сбрасываются при TYPE_WINDOW_STATE_CHANGED. Если
+// нужного id в индексе нет, окно перестраивается, только если после обхода
+// приходили события UI: иначе цель в другом окне или исчезла, и повторный
+// обход ничего не даст. Хранятся индексы нескольких последних окон.
+//
+// Узлы индекса и корень recycle-ятся при сбросе; наружу отдается копия.
+public final class NodeIndex {
+    private static final int MAX_WINDOWS = 4;
+    // Больше узлов за один обход не индексируется: огромные списки не держим в памяти
+    private static final int MAX_INDEXED_NODES = 5000;
+
+    private static class Window {
+        final Map<String, List<AccessibilityNodeInfo>> nodes;
+        // Значение uiEventCount на момент обхода
+        final int builtAt;
+
+        Window(Map<String, List<AccessibilityNodeInfo>> nodes, int builtAt) {
+            this.nodes = nodes;
+            this.builtAt = builtAt;
+        }
+    }
+
+    private final LruCache<Integer, Window> windows = new LruCache<Integer, Window>(MAX_WINDOWS) {
+        @Override
+        protected void entryRemoved(boolean evicted, Integer windowId, Window oldWindow, Window newWindow) {
+            for (List<AccessibilityNodeInfo> list : oldWindow.nodes.values()) {
+                for (int i = 0; i < list.size(); i++) {
+                    list.get(i).recycle();
+                }
+            }
+        }
+    };
+    private int uiEventCount;
+    // Корень активного окна и значение uiEventCount, когда он был получен
+    private AccessibilityNodeInfo root;
+    private int rootAt;
+    // Только под блокировкой индекса: find() ничего не выделяет на каждый шаг
+    private final List<AccessibilityNodeInfo> visible = new ArrayList<>();
+    private final List<AccessibilityNodeInfo> tied = new ArrayList<>();
+    private final Rect bounds = new Rect();
+
+    // Содержимое окон могло измениться; вызывается в главном потоке на события UI
+    public synchronized void onUiEvent() {
+        uiEventCount++;
+    }
+
+    // windowId < 0 — сбросить все окна. Корень сбрасывается всегда:
+    // активным могло стать другое окно.
+    public synchronized void invalidate(int windowId) {
+        releaseRoot();
+        if (windowId < 0) {
+            windows.evictAll();
+        } else {
+            windows.remove(windowId);
+        }
+    }
+
+    // Узел view target в активном окне, который нужно нажать действием доступности.
+    // null — записанная точка (x, y) попадает в подходящий view и жеста достаточно,
+    // либо цель не найдена или не определяется однозначно. Узел — копия,
+    // вызывающий recycle-ит ее сам.
+    public synchronized AccessibilityNodeInfo findMovedTarget(AccessibilityService service, ViewIdentity target,
+                                                              float x, float y) {
+        AccessibilityNodeInfo root = getRoot(service);
+        if (root == null) {
+            return null;
+        }
+        if (target.getResourceId() == null) {
+            // Без id остается только путь от корня
+            AccessibilityNodeInfo node = findByPath(target, root);
+            if (node != null && containsPoint(node, x, y)) {
+                node.recycle();
+                return null;
+            }
+            return node;
+        }
+
+        Window window = windows.get(root.getWindowId());
+        if (window == null) {
+            window = build(root);
+        }
+        AccessibilityNodeInfo node = find(window, target, root, x, y);
+        if (node == null && window.builtAt != uiEventCount) {
+            // View мог появиться после обхода или узлы устарели
+            window = build(root);
+            node = find(window, target, root, x, y);
+        }
+        return node != null ? AccessibilityNodeInfo.obtain(node) : null;
+    }
+
+    // Корень переиспользуется, пока окно не сменилось; после событий UI
+    // его список детей обновляется одним refresh()
+    private AccessibilityNodeInfo getRoot(AccessibilityService service) {
+        if (root != null && rootAt != uiEventCount && !root.refresh()) {
+            releaseRoot();
+        }
+        if (root == null) {
+            root = service.getRootInActiveWindow();
+        }
+        rootAt = uiEventCount;
+        return root;
+    }
+
+    private void releaseRoot() {
+        if (root != null) {
+            root.recycle();
+            root = null;
+        }
+    }
+
+    // Выбирает узел по состоянию из обхода и обновляет только его.
+    // null — жест верен либо цель не найдена; при устаревшем узле тоже null.
+    private AccessibilityNodeInfo find(Window window, ViewIdentity target, AccessibilityNodeInfo root,
+                                       float x, float y) {
+        collectVisible(window.nodes.get(target.getResourceId()));
+        boolean stale = window.builtAt != uiEventCount;
+        AccessibilityNodeInfo node = pick(target, root, x, y, stale);
+        visible.clear();
+        tied.clear();
+        if (node == null || !node.refresh() || !node.isVisibleToUser()) {
+            return null;
+        }
+        // Границы после refresh(): view мог вернуться под точку касания
+        return containsPoint(node, x, y) ? null : node;
+    }
+
+    private Window build(AccessibilityNodeInfo root) {
+        Map<String, List<AccessibilityNodeInfo>> nodes = new HashMap<>();
+        ArrayDeque<AccessibilityNodeInfo> pending = new ArrayDeque<>();
+        pending.add(root);
+        int visited = 0;
+        while (!pending.isEmpty() && visited < MAX_INDEXED_NODES) {
+            AccessibilityNodeInfo node = pending.poll();
+            visited++;
+            int childCount = node.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child != null) {
+                    pending.add(child);
+                }
+            }
+            String resourceId = node.getViewIdResourceName();
+            if (resourceId != null) {
+                List<AccessibilityNodeInfo> list = nodes.get(resourceId);
+                if (list == null) {
+                    list = new ArrayList<>(1);
+                    nodes.put(resourceId, list);
+                }
+                // Корень принадлежит не окну, а полю root
+                list.add(node == root ? AccessibilityNodeInfo.obtain(root) : node);
+            } else if (node != root) {
+                node.recycle();
+            }
+        }
+        if (!pending.isEmpty()) {
+            MacroLog.w(MacroLog.PLAYER, "Окно проиндексировано не полностью, узлов: " + visited);
+            while (!pending.isEmpty()) {
+                pending.poll().recycle();
+            }
+        }
+        Window window = new Window(nodes, uiEventCount);
+        windows.put(root.getWindowId(), window);
+        return window;
+    }
+
+    // Узлы, которые были видимы при обходе
+    private void collectVisible(List<AccessibilityNodeInfo> candidates) {
+        visible.clear();
+        if (candidates == null) {
+            return;
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            AccessibilityNodeInfo node = candidates.get(i);
+            if (node.isVisibleToUser()) {
+                visible.add(node);
+            }
+        }
+    }
+
+    // Из видимых узлов с одним id (например, строк списка): если точка касания
+    // попадает в любой из них, жест верен. Иначе лучший по тексту и классу,
+    // при равенстве — тот, что лежит по записанному пути. stale — после обхода
+    // были события UI, и узел под точкой сначала обновляется.
+    private AccessibilityNodeInfo pick(ViewIdentity target, AccessibilityNodeInfo root, float x, float y,
+                                       boolean stale) {
+        if (visible.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < visible.size(); i++) {
+            AccessibilityNodeInfo node = visible.get(i);
+            if (containsPoint(node, x, y)
+                    && (!stale || (node.refresh() && node.isVisibleToUser() && containsPoint(node, x, y)))) {
+                return null;
+            }
+        }
+
+        int bestScore = -1;
+        for (int i = 0; i < visible.size(); i++) {
+            AccessibilityNodeInfo node = visible.get(i);
+            int score = score(node, target);
+            if (score > bestScore) {
+                bestScore = score;
+                tied.clear();
+            }
+            if (score == bestScore) {
+                tied.add(node);
+            }
+        }
+        if (tied.size() == 1) {
+            return tied.get(0);
+        }
+
+        AccessibilityNodeInfo atPath = findByPath(target, root);
+        if (atPath != null) {
+            try {
+                for (int i = 0; i < tied.size(); i++) {
+                    if (tied.get(i).equals(atPath)) {
+                        return tied.get(i);
+                    }
+                }
+            } finally {
+                atPath.recycle();
+            }
+        }
+        MacroLog.d(MacroLog.PLAYER, "Цель касания неоднозначна, кандидатов: ", tied.size());
+        return null;
+    }
+
+    // Совпадение текста важнее совпадения класса
+    private static int score(AccessibilityNodeInfo node, ViewIdentity target) {
+        int score = 0;
+        if (target.getClassName() != null && target.getClassName().contentEquals(toString(node.getClassName()))) {
+            score++;
+        }
+        if (target.getText() != null && node.getText() != null
+                && node.getText().toString().startsWith(target.getText())) {
+            score += 2;
+        }
+        return score;
+    }
+
+    private boolean containsPoint(AccessibilityNodeInfo node, float x, float y) {
+        if (x < 0) {
+            return false;
+        }
+        node.getBoundsInScreen(bounds);
+        return bounds.contains((int) x, (int) y);
+    }
+
+    private static AccessibilityNodeInfo findByPath(ViewIdentity target, AccessibilityNodeInfo root) {
+        int[] path = target.getIndexPath();
+        if (path == null || path.length == 0) {
+            return null;
+        }
+        // Промежуточные узлы recycle-ятся, найденный отдается вызывающему
+        AccessibilityNodeInfo node = root;
+        for (int index : path) {
+            AccessibilityNodeInfo child = index < node.getChildCount() ? node.getChild(index) : null;
+            if (node != root) {
+                node.recycle();
+            }
+            if (child == null) {
+                return null;
+            }
+            node = child;
+        }
+        // Путь приводит к другому view, если дерево изменилось
+        if (target.getClassName() != null && !target.getClassName().contentEquals(toString(node.getClassName()))) {
+            MacroLog.d(MacroLog.PLAYER, "По пути найден другой view, глубина: ", path.length);
+            node.recycle();
+            return null;
+        }
+        return node;
+    }
+
+    private static String toString(CharSequence value) {
+        return value != null ? value.toString() : "";
+    }
+}
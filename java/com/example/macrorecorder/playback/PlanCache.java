@@ -0,0 +1,109 @@
+package com.example.macrorecorder.playback;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import com.example.macrorecorder.data.Preset;
+import com.example.macrorecorder.logging.MacroLog;
+import com.example.macrorecorder.repository.PresetRepository;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// LRU-кэш скомпилированных планов воспроизведения. План действителен, пока
+// не изменились версия файла пресета и скорость воспроизведения. Размер считается в шагах плана,
+// как в PresetCache. Компиляция идет на отдельном фоновом потоке, поэтому
+// пресет можно скомпилировать заранее, при выборе в списке.
+public final class PlanCache {
+    private static final int MAX_CACHED_STEPS = 50_000;
+
+    private static PlanCache instance;
+
+    private static class Entry {
+        final PlaybackPlan plan;
+        final long version;
+
+        Entry(PlaybackPlan plan, long version) {
+            this.plan = plan;
+            this.version = version;
+        }
+    }
+
+    private final LruCache<String, Entry> cache = new LruCache<String, Entry>(MAX_CACHED_STEPS) {
+        @Override
+        protected int sizeOf(String key, Entry entry) {
+            // +1, чтобы пустые планы тоже занимали место в кэше
+            return entry.plan.size() + 1;
+        }
+    };
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService compiler = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MacroPlanCompiler");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    public static synchronized PlanCache getInstance() {
+        if (instance == null) {
+            instance = new PlanCache();
+        }
+        return instance;
+    }
+
+    private PlanCache() {}
+
+    // Компилирует пресет в фоне, чтобы запуск воспроизведения не ждал компиляции
+    public void precompileAsync(PresetRepository repository, String presetId, PlaybackOptions options) {
+        compiler.execute(() -> {
+            try {
+                getPlan(repository, presetId, options);
+            } catch (RuntimeException e) {
+                MacroLog.e(MacroLog.PLAYER, "Ошибка компиляции плана", e);
+            }
+        });
+    }
+
+    // План текущего пресета; null — пресет не выбран или не найден.
+    // Результат доставляется в главный поток.
+    public void loadCurrentPlanAsync(PresetRepository repository, PlaybackOptions options,
+                                     PresetRepository.Callback<PlaybackPlan> callback) {
+        compiler.execute(() -> {
+            PlaybackPlan plan = null;
+            try {
+                plan = getPlan(repository, repository.getCurrentPresetId(), options);
+            } catch (RuntimeException e) {
+                MacroLog.e(MacroLog.PLAYER, "Ошибка компиляции плана", e);
+            }
+            PlaybackPlan delivered = plan;
+            mainHandler.post(() -> callback.onResult(delivered));
+        });
+    }
+
+    // Вызывается только на потоке компиляции, поэтому один пресет не компилируется дважды
+    private PlaybackPlan getPlan(PresetRepository repository, String presetId, PlaybackOptions options) {
+        if (presetId == null) {
+            return null;
+        }
+        long version = repository.getPresetVersion(presetId);
+        if (version != 0) {
+            Entry entry = cache.get(presetId);
+            if (entry != null && entry.version == version && entry.plan.isCompiledFor(options)) {
+                return entry.plan;
+            }
+        }
+
+        Preset preset = repository.getPresetById(presetId);
+        if (preset == null) {
+            cache.remove(presetId);
+            return null;
+        }
+        PlaybackPlan plan = PlaybackPlan.compile(preset.getTimeline(), options);
+        // Несохраненный пресет или пресет, измененный во время чтения, не кэшируется
+        if (version != 0 && version == repository.getPresetVersion(presetId)) {
+            cache.put(presetId, new Entry(plan, version));
+        } else {
+            cache.remove(presetId);
+        }
+        MacroLog.d(MacroLog.PLAYER, "Скомпилирован план, шагов: ", plan.size());
+        return plan;
+    }
+}
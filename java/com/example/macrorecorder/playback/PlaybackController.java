@@ -0,0 +1,173 @@
+package com.example.macrorecorder.playback;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.example.macrorecorder.logging.MacroLog;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Управление воспроизведением: одно воспроизведение в каждый момент времени.
+//
+// Состояния: IDLE -> COUNTDOWN -> PLAYING <-> PAUSED -> STOPPING -> IDLE.
+// Переход в COUNTDOWN занимает экран: повторный запуск, пока макрос
+// отсчитывается или играет, отклоняется.
+public final class PlaybackController {
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_COUNTDOWN = 1;
+    public static final int STATE_PLAYING = 2;
+    public static final int STATE_PAUSED = 3;
+    public static final int STATE_STOPPING = 4;
+
+    // Вызывается в главном потоке
+    public interface OnStateChangedListener {
+        void onStateChanged(int state);
+    }
+
+    private final PlaybackScheduler scheduler;
+    private final GesturePipeline gesturePipeline;
+    private final PlaybackScheduler.ActionDispatcher dispatcher;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<OnStateChangedListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final PlaybackScheduler.Listener schedulerListener = new PlaybackScheduler.Listener() {
+        @Override
+        public void onIterationFinished(int iteration, long elapsedNanos) {
+            PlaybackController.this.onIterationFinished(iteration, elapsedNanos);
+        }
+
+        @Override
+        public void onPlaybackFinished(boolean completed) {
+            PlaybackController.this.onPlaybackFinished(completed);
+        }
+    };
+
+    private int state = STATE_IDLE;
+    // Эпоха GesturePipeline текущего воспроизведения; stop() ее завершает
+    private volatile int gestureEpoch;
+    private int completedIterations;
+    private long lastIterationNanos;
+
+    public PlaybackController(PlaybackScheduler scheduler, GesturePipeline gesturePipeline,
+                              PlaybackScheduler.ActionDispatcher dispatcher) {
+        this.scheduler = scheduler;
+        this.gesturePipeline = gesturePipeline;
+        this.dispatcher = dispatcher;
+    }
+
+    // Занимает воспроизведение на время обратного отсчета.
+    // false — уже идет другое воспроизведение.
+    public synchronized boolean prepare() {
+        if (state != STATE_IDLE) {
+            return false;
+        }
+        setState(STATE_COUNTDOWN);
+        return true;
+    }
+
+    // Запускает воспроизведение после отсчета. false — отсчет был отменен.
+    public synchronized boolean start(PlaybackPlan plan, PlaybackOptions options) {
+        if (state != STATE_COUNTDOWN) {
+            return false;
+        }
+        setState(STATE_PLAYING);
+        completedIterations = 0;
+        lastIterationNanos = 0;
+        gesturePipeline.resetStats();
+        gestureEpoch = gesturePipeline.getEpoch();
+        scheduler.play(plan, options.loopCount, dispatcher, gesturePipeline.getLatencyEstimator(), schedulerListener);
+        return true;
+    }
+
+    public synchronized boolean pause() {
+        if (state != STATE_PLAYING) {
+            return false;
+        }
+        scheduler.pause();
+        setState(STATE_PAUSED);
+        return true;
+    }
+
+    public synchronized boolean resume() {
+        if (state != STATE_PAUSED) {
+            return false;
+        }
+        scheduler.resume();
+        setState(STATE_PLAYING);
+        return true;
+    }
+
+    // Останавливает воспроизведение или отменяет отсчет
+    public synchronized void stop() {
+        switch (state) {
+            case STATE_COUNTDOWN:
+                setState(STATE_IDLE);
+                break;
+            case STATE_PLAYING:
+            case STATE_PAUSED:
+                // Оставшиеся действия и жесты в очереди отменяются сразу;
+                // в IDLE перейдем, когда поток воспроизведения завершится
+                setState(STATE_STOPPING);
+                scheduler.cancel();
+                gesturePipeline.cancelPending();
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Передается в GesturePipeline.submit(); без блокировки — вызывается на каждый шаг
+    public int getGestureEpoch() {
+        return gestureEpoch;
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public synchronized boolean isActive() {
+        return state != STATE_IDLE;
+    }
+
+    // Повторы текущего или последнего воспроизведения
+    public synchronized int getCompletedIterations() {
+        return completedIterations;
+    }
+
+    public synchronized long getLastIterationMillis() {
+        return lastIterationNanos / 1_000_000;
+    }
+
+    public void addOnStateChangedListener(OnStateChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeOnStateChangedListener(OnStateChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    private synchronized void onIterationFinished(int iteration, long elapsedNanos) {
+        completedIterations = iteration;
+        lastIterationNanos = elapsedNanos;
+    }
+
+    private synchronized void onPlaybackFinished(boolean completed) {
+        if (state == STATE_PLAYING || state == STATE_PAUSED || state == STATE_STOPPING) {
+            MacroLog.d(MacroLog.PLAYER, completed ? "Воспроизведение завершено" : "Воспроизведение остановлено");
+            if (MacroLog.isEnabled(MacroLog.PLAYER, MacroLog.DEBUG)) {
+                MacroLog.d(MacroLog.PLAYER, "Жесты: выполнено " + gesturePipeline.getCompletedCount() +
+                        ", отменено " + gesturePipeline.getCancelledCount() +
+                        ", повторено " + gesturePipeline.getRetriedCount() +
+                        ", не принято " + gesturePipeline.getRejectedCount());
+            }
+            setState(STATE_IDLE);
+        }
+    }
+
+    private void setState(int newState) {
+        state = newState;
+        mainHandler.post(() -> {
+            for (OnStateChangedListener listener : listeners) {
+                listener.onStateChanged(newState);
+            }
+        });
+    }
+}
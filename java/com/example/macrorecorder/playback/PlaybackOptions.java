@@ -0,0 +1,73 @@
+package com.example.macrorecorder.playback;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Параметры воспроизведения: скорость, турбо-режим, ожидание UI, число повторов
+// и повтор отмененных жестов.
+//
+// Скорость, турбо-режим и ожидание UI меняют сроки и состав шагов, поэтому
+// учитываются при компиляции плана. Повторы проигрывают один и тот же план.
+// Повтор отмененных жестов задает RetryPolicy очереди жестов.
+public final class PlaybackOptions {
+    // Бесконечный повтор до остановки
+    public static final int LOOP_FOREVER = 0;
+
+    public static final float MIN_SPEED = 0.1f;
+    public static final float MAX_SPEED = 10f;
+
+    public static final PlaybackOptions DEFAULT = new PlaybackOptions(1f, false, false, 1, true);
+
+    private static final String PREFS_NAME = "playback_options";
+    private static final String SPEED_KEY = "speed";
+    private static final String TURBO_KEY = "turbo";
+    private static final String WAIT_FOR_UI_KEY = "wait_for_ui";
+    private static final String LOOP_COUNT_KEY = "loop_count";
+    private static final String RETRY_CANCELLED_KEY = "retry_cancelled";
+
+    public final float speed;
+    // Паузы между действиями сокращаются до PlaybackPlan.TURBO_PAUSE_MS
+    public final boolean turbo;
+    // Записанные паузы заменяются ожиданием, пока UI не отреагирует и не затихнет
+    public final boolean waitForUi;
+    public final int loopCount;
+    // Жест, отмененный системой, отправляется снова по GesturePipeline.DEFAULT_RETRY
+    public final boolean retryCancelled;
+
+    public PlaybackOptions(float speed, boolean turbo, boolean waitForUi, int loopCount, boolean retryCancelled) {
+        this.speed = Float.isNaN(speed) ? 1f : Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+        this.turbo = turbo;
+        this.waitForUi = waitForUi;
+        this.loopCount = Math.max(LOOP_FOREVER, loopCount);
+        this.retryCancelled = retryCancelled;
+    }
+
+    public boolean isLoopForever() {
+        return loopCount == LOOP_FOREVER;
+    }
+
+    // Совпадают ли параметры, от которых зависит скомпилированный план
+    boolean hasSameTiming(PlaybackOptions other) {
+        return speed == other.speed && turbo == other.turbo && waitForUi == other.waitForUi;
+    }
+
+    public static PlaybackOptions load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return new PlaybackOptions(
+                prefs.getFloat(SPEED_KEY, DEFAULT.speed),
+                prefs.getBoolean(TURBO_KEY, DEFAULT.turbo),
+                prefs.getBoolean(WAIT_FOR_UI_KEY, DEFAULT.waitForUi),
+                prefs.getInt(LOOP_COUNT_KEY, DEFAULT.loopCount),
+                prefs.getBoolean(RETRY_CANCELLED_KEY, DEFAULT.retryCancelled));
+    }
+
+    public void save(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putFloat(SPEED_KEY, speed)
+                .putBoolean(TURBO_KEY, turbo)
+                .putBoolean(WAIT_FOR_UI_KEY, waitForUi)
+                .putInt(LOOP_COUNT_KEY, loopCount)
+                .putBoolean(RETRY_CANCELLED_KEY, retryCancelled)
+                .apply();
+    }
+}
@@ -0,0 +1,364 @@
+package com.example.macrorecorder.playback;
+
+import android.accessibilityservice.GestureDescription;
+import android.graphics.Path;
+import android.os.Build;
+import com.example.macrorecorder.data.ActionTimeline;
+import com.example.macrorecorder.data.MacroAction;
+import com.example.macrorecorder.data.ViewIdentity;
+import com.example.macrorecorder.logging.MacroLog;
+
+// Неизменяемый план воспроизведения пресета.
+//
+// Пресет компилируется один раз: жесты собираются заранее, служебные метки
+// начала и конца записи выбрасываются, а их задержки входят в срок
+// следующего шага. Воспроизведение только отправляет готовые
+// GestureDescription и ничего не выделяет.
+//
+// Действия, идущие чаще, чем успевает вернуться предыдущий жест,
+// упаковываются в один жест из нескольких штрихов со смещением по времени
+// (не больше getMaxStrokeCount() и getMaxGestureDuration()): такой шаг
+// уходит одним вызовом dispatchGesture и выполняется системой в
+// записанном темпе.
+//
+// План компилируется под скорость и турбо-режим PlaybackOptions: сроки и
+// длительность штрихов делятся на скорость, касания остаются прежней длины.
+//
+// Шаг ожидания (TYPE_WAIT) не занимает времени записи: следующие шаги
+// сдвигаются на фактическое время ожидания. С PlaybackOptions.waitForUi
+// записанные паузы заменяются ожиданием WAIT_SETTLED с таймаутом, равным паузе.
+//
+// У отдельного касания с записанным view шаг хранит его описание и точку
+// касания: если view сместился, воспроизведение нажимает его через
+// ACTION_CLICK. Касание без координат (у view не было границ при записи)
+// не упаковывается и не имеет жеста.
+public final class PlaybackPlan {
+    static final long CLICK_DURATION_MS = 100;
+    static final long LONG_CLICK_DURATION_MS = 500;
+
+    // Время от окончания жеста до колбэка и отправки следующего; действие,
+    // начинающееся раньше, добавляется в текущий жест
+    static final long BATCH_GAP_MS = 50;
+
+    // Пауза между действиями в турбо-режиме: приложение успевает отреагировать
+    // на касание, а ожидание записанных пауз пропускается
+    static final long TURBO_PAUSE_MS = 100;
+
+    // Более короткие паузы не заменяются ожиданием: выигрыш меньше порога затихания UI
+    static final long MIN_WAIT_PAUSE_MS = 400;
+
+    private int size;
+    // Тип первого действия шага (MacroAction.TYPE_*)
+    private final int[] kinds;
+    // Срок шага от начала воспроизведения
+    private final long[] offsetsNanos;
+    // Длительность жеста от начала первого штриха до конца последнего
+    // или таймаут ожидания
+    private final long[] durationsMs;
+    private final int[] strokeCounts;
+    private final GestureDescription[] gestures;
+    private final int[] waitConditions;
+    private final String[] viewIds;
+    // Нажимаемый view и точка касания; только у шагов из одного касания
+    private final ViewIdentity[] targets;
+    private final float[] tapXs;
+    private final float[] tapYs;
+    // Длительность одного прохода: следующий повтор начинается после нее
+    private long durationNanos;
+    private boolean hasWaitSteps;
+    private boolean hasTargets;
+    private final PlaybackOptions timing;
+
+    private PlaybackPlan(int capacity, PlaybackOptions timing) {
+        kinds = new int[capacity];
+        offsetsNanos = new long[capacity];
+        durationsMs = new long[capacity];
+        strokeCounts = new int[capacity];
+        gestures = new GestureDescription[capacity];
+        waitConditions = new int[capacity];
+        viewIds = new String[capacity];
+        targets = new ViewIdentity[capacity];
+        tapXs = new float[capacity];
+        tapYs = new float[capacity];
+        this.timing = timing;
+    }
+
+    // Вызывается в фоновом потоке: сборка жестов заметно дороже их отправки
+    public static PlaybackPlan compile(ActionTimeline timeline, PlaybackOptions options) {
+        int timelineSize = timeline != null ? timeline.size() : 0;
+        // С waitForUi перед каждым действием может появиться ожидание
+        int capacity = options.waitForUi ? timelineSize * 2 : timelineSize;
+        PlaybackPlan plan = new PlaybackPlan(capacity, options);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            MacroLog.w(MacroLog.PLAYER, "API < 24, dispatchGesture не поддерживается");
+            return plan;
+        }
+
+        // Действия с траекториями (касание — одна точка, штрих — ломаная) и ожидания
+        int actionCount = 0;
+        int[] actionTypes = new int[capacity];
+        long[] actionOffsetsMicros = new long[capacity];
+        long[] actionDurationsMs = new long[capacity];
+        float[][] actionPoints = new float[capacity][];
+        ViewIdentity[] actionTargets = new ViewIdentity[capacity];
+        long maxGestureDuration = GestureDescription.getMaxGestureDuration();
+        // Сдвиг, накопленный сокращением пауз
+        long shiftMicros = 0;
+        long previousEndMicros = 0;
+        long endMicros = 0;
+        for (int i = 0; i < timelineSize; i++) {
+            int type = timeline.getType(i);
+            if (!isPlayable(timeline, i)) {
+                // Пропущенное действие не должно оставлять ожидание перед собой
+                continue;
+            }
+            long time = (long) (timeline.getTimestampMicros(i) / (double) options.speed) - shiftMicros;
+            if (options.turbo && time > previousEndMicros + TURBO_PAUSE_MS * 1000) {
+                shiftMicros += time - (previousEndMicros + TURBO_PAUSE_MS * 1000);
+                time = previousEndMicros + TURBO_PAUSE_MS * 1000;
+            }
+            boolean isGesture = type == MacroAction.TYPE_CLICK || type == MacroAction.TYPE_LONG_CLICK
+                    || type == MacroAction.TYPE_STROKE;
+            if (options.waitForUi && isGesture && time - previousEndMicros >= MIN_WAIT_PAUSE_MS * 1000) {
+                // Пауза заменяется ожиданием реакции UI не дольше самой паузы
+                actionTypes[actionCount] = MacroAction.TYPE_WAIT;
+                actionOffsetsMicros[actionCount] = previousEndMicros;
+                actionDurationsMs[actionCount] = (time - previousEndMicros) / 1000;
+                plan.waitConditions[actionCount] = MacroAction.WAIT_SETTLED;
+                actionCount++;
+                shiftMicros += time - previousEndMicros;
+                time = previousEndMicros;
+            }
+            endMicros = Math.max(endMicros, time);
+            switch (type) {
+                case MacroAction.TYPE_CLICK:
+                case MacroAction.TYPE_LONG_CLICK:
+                    actionDurationsMs[actionCount] =
+                            type == MacroAction.TYPE_CLICK ? CLICK_DURATION_MS : LONG_CLICK_DURATION_MS;
+                    actionPoints[actionCount] = new float[] {timeline.getX(i), timeline.getY(i)};
+                    actionTargets[actionCount] = timeline.getViewIdentity(i);
+                    break;
+                case MacroAction.TYPE_STROKE:
+                    float[] points = timeline.getPoints(i);
+                    long strokeDurationMs = (long) (timeline.getStrokeDurationMicros(i) / (double) options.speed) / 1000;
+                    actionDurationsMs[actionCount] = Math.max(1, Math.min(strokeDurationMs, maxGestureDuration));
+                    actionPoints[actionCount] = points;
+                    break;
+                case MacroAction.TYPE_WAIT:
+                    actionDurationsMs[actionCount] = Math.max(1, timeline.getWaitTimeoutMicros(i) / 1000);
+                    plan.waitConditions[actionCount] = timeline.getWaitCondition(i);
+                    plan.viewIds[actionCount] = timeline.getViewId(i);
+                    break;
+                default:
+                    break;
+            }
+            actionTypes[actionCount] = type;
+            actionOffsetsMicros[actionCount] = time;
+            if (type != MacroAction.TYPE_WAIT) {
+                previousEndMicros = Math.max(previousEndMicros, time + actionDurationsMs[actionCount] * 1000);
+            }
+            actionCount++;
+        }
+
+        int maxStrokeCount = GestureDescription.getMaxStrokeCount();
+        int size = 0;
+        int first = 0;
+        while (first < actionCount) {
+            if (actionTypes[first] == MacroAction.TYPE_WAIT) {
+                // Условие лежит по индексу действия; шагов не больше, чем действий,
+                // поэтому перенос к индексу шага его не затирает
+                plan.kinds[size] = MacroAction.TYPE_WAIT;
+                plan.offsetsNanos[size] = actionOffsetsMicros[first] * 1000;
+                plan.durationsMs[size] = actionDurationsMs[first];
+                plan.waitConditions[size] = plan.waitConditions[first];
+                plan.viewIds[size] = plan.viewIds[first];
+                plan.hasWaitSteps = true;
+                size++;
+                first++;
+                continue;
+            }
+
+            // Набираем действия, пока следующее начинается до возврата текущего жеста.
+            // Касания без координат нажимаются только по описанию view и не упаковываются.
+            int end = first + 1;
+            while (hasCoordinates(actionPoints[first]) && end < actionCount && end - first < maxStrokeCount
+                    && actionTypes[end] != MacroAction.TYPE_WAIT && hasCoordinates(actionPoints[end])) {
+                long previousStartMs = (actionOffsetsMicros[end - 1] - actionOffsetsMicros[first]) / 1000;
+                long previousEndMs = previousStartMs + actionDurationsMs[end - 1];
+                long startMs = (actionOffsetsMicros[end] - actionOffsetsMicros[first]) / 1000;
+                // Штрихи одного жеста не должны перекрываться: иначе это мультитач.
+                // Укоротить можно только касание: долгое нажатие стало бы касанием,
+                // а штрих — быстрее записанного
+                boolean fitsGap = actionTypes[end - 1] == MacroAction.TYPE_CLICK
+                        ? startMs - previousStartMs >= 2
+                        : startMs > previousEndMs;
+                boolean isDense = startMs < previousEndMs + BATCH_GAP_MS;
+                boolean fitsDuration = startMs + actionDurationsMs[end] <= maxGestureDuration;
+                if (!fitsGap || !isDense || !fitsDuration) {
+                    break;
+                }
+                end++;
+            }
+
+            plan.kinds[size] = actionTypes[first];
+            plan.offsetsNanos[size] = actionOffsetsMicros[first] * 1000;
+            plan.strokeCounts[size] = end - first;
+            plan.waitConditions[size] = 0;
+            plan.viewIds[size] = null;
+            boolean isSingleTap = end == first + 1 && actionTypes[first] != MacroAction.TYPE_STROKE;
+            plan.targets[size] = isSingleTap ? actionTargets[first] : null;
+            plan.tapXs[size] = actionPoints[first][0];
+            plan.tapYs[size] = actionPoints[first][1];
+            // Цели без id находятся по пути от корня, индекс им не нужен
+            if (plan.targets[size] != null && plan.targets[size].getResourceId() != null) {
+                plan.hasTargets = true;
+            }
+            if (!hasCoordinates(actionPoints[first])) {
+                plan.durationsMs[size] = actionDurationsMs[first];
+                plan.gestures[size] = null;
+                size++;
+                first = end;
+                continue;
+            }
+
+            GestureDescription.Builder builder = new GestureDescription.Builder();
+            long gestureEnd = 0;
+            for (int a = first; a < end; a++) {
+                long startTime = (actionOffsetsMicros[a] - actionOffsetsMicros[first]) / 1000;
+                long duration = actionDurationsMs[a];
+                if (a + 1 < end && actionTypes[a] == MacroAction.TYPE_CLICK) {
+                    // Касание укорачивается, чтобы закончиться до начала следующего
+                    long nextStartTime = (actionOffsetsMicros[a + 1] - actionOffsetsMicros[first]) / 1000;
+                    duration = Math.max(1, Math.min(duration, nextStartTime - startTime - 1));
+                }
+                builder.addStroke(new GestureDescription.StrokeDescription(
+                        buildPath(actionPoints[a]), startTime, duration));
+                gestureEnd = startTime + duration;
+            }
+
+            plan.durationsMs[size] = gestureEnd;
+            plan.gestures[size] = builder.build();
+            size++;
+            first = end;
+        }
+        if (size < actionCount) {
+            MacroLog.d(MacroLog.PLAYER, "Вызовов dispatchGesture сэкономлено упаковкой: ", actionCount - size);
+        }
+        plan.size = size;
+        // Повтор не начинается раньше, чем закончится последний жест
+        plan.durationNanos = actionCount > 0
+                ? Math.max(endMicros, previousEndMicros + BATCH_GAP_MS * 1000) * 1000
+                : 0;
+        return plan;
+    }
+
+    // Дает ли действие шаг плана; проверяется до вставки ожидания перед ним
+    private static boolean isPlayable(ActionTimeline timeline, int i) {
+        switch (timeline.getType(i)) {
+            case MacroAction.TYPE_CLICK:
+            case MacroAction.TYPE_LONG_CLICK:
+                if (timeline.getViewIdentity(i) == null && timeline.getX(i) < 0) {
+                    MacroLog.w(MacroLog.PLAYER, "Касание без координат и view пропущено");
+                    return false;
+                }
+                return true;
+            case MacroAction.TYPE_STROKE:
+                float[] points = timeline.getPoints(i);
+                if (points == null || points.length < 4) {
+                    MacroLog.w(MacroLog.PLAYER, "Штрих без траектории пропущен");
+                    return false;
+                }
+                return true;
+            case MacroAction.TYPE_WAIT:
+                return true;
+            default:
+                // Метки начала и конца записи ничего не воспроизводят
+                return false;
+        }
+    }
+
+    // Касание записано без координат: у view не было границ
+    private static boolean hasCoordinates(float[] points) {
+        return points[0] >= 0;
+    }
+
+    private static Path buildPath(float[] points) {
+        Path path = new Path();
+        path.moveTo(points[0], points[1]);
+        for (int i = 2; i + 1 < points.length; i += 2) {
+            path.lineTo(points[i], points[i + 1]);
+        }
+        return path;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getKind(int index) {
+        return kinds[index];
+    }
+
+    public long getOffsetNanos(int index) {
+        return offsetsNanos[index];
+    }
+
+    public long getDurationMs(int index) {
+        return durationsMs[index];
+    }
+
+    // Число действий, упакованных в жест шага
+    public int getStrokeCount(int index) {
+        return strokeCounts[index];
+    }
+
+    // null — касание без координат, выполняется только через getTarget()
+    public GestureDescription getGesture(int index) {
+        return gestures[index];
+    }
+
+    // Описание нажимаемого view или null
+    public ViewIdentity getTarget(int index) {
+        return targets[index];
+    }
+
+    // Записанная точка касания шага; отрицательная — координат нет
+    public float getTapX(int index) {
+        return tapXs[index];
+    }
+
+    public float getTapY(int index) {
+        return tapYs[index];
+    }
+
+    public boolean isWait(int index) {
+        return kinds[index] == MacroAction.TYPE_WAIT;
+    }
+
+    public int getWaitCondition(int index) {
+        return waitConditions[index];
+    }
+
+    public String getViewId(int index) {
+        return viewIds[index];
+    }
+
+    // Нужны ли воспроизведению события UI
+    public boolean hasWaitSteps() {
+        return hasWaitSteps;
+    }
+
+    // Нужен ли воспроизведению индекс view окна: есть цели с resource id
+    public boolean hasTargets() {
+        return hasTargets;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    // Скомпилирован ли план под скорость и турбо-режим options
+    boolean isCompiledFor(PlaybackOptions options) {
+        return timing.hasSameTiming(options);
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.macrorecorder.playback;
+
+import com.example.macrorecorder.logging.MacroLog;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Воспроизведение по абсолютным срокам на одном долгоживущем потоке.
+//
+// Каждый шаг плана выполняется в момент start + offset, а не через
+// задержку после предыдущего, поэтому опоздание одного шага (отправка
+// жеста, планировщик ОС, логирование) не переносится на следующие
+// и за длинный макрос не накапливается. Время паузы сдвигает все
+// оставшиеся сроки, так что интервалы между действиями сохраняются.
+// Повторы проигрывают тот же план без какой-либо подготовки между ними.
+//
+// Если задана оценка задержки жестов, действие отправляется раньше срока
+// на эту оценку, чтобы касание попало в записанный момент.
+//
+// На шаге ожидания поток ждет условия, просыпаясь по событиям UI
+// (onUiEvent()) и по таймеру, а все следующие сроки сдвигаются на время ожидания.
+public final class PlaybackScheduler {
+    // Вызывается на потоке воспроизведения
+    public interface ActionDispatcher {
+        // Выполняет шаг плана с индексом index
+        void dispatch(PlaybackPlan plan, int index);
+
+        // Выполнено ли условие шага ожидания; sinceNanos — начало ожидания
+        boolean isConditionMet(PlaybackPlan plan, int index, long sinceNanos);
+    }
+
+    // Вызывается на потоке воспроизведения
+    public interface Listener {
+        // iteration — номер завершенного повтора с 1, elapsedNanos — его длительность без пауз
+        void onIterationFinished(int iteration, long elapsedNanos);
+
+        // completed = false при отмене
+        void onPlaybackFinished(boolean completed);
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MacroPlayer");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        return thread;
+    });
+
+    // Номер текущего воспроизведения; смена номера отменяет ожидающее воспроизведение
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile Thread worker;
+
+    // Период проверки условий, которые выполняются без событий (затихание UI)
+    private static final long CONDITION_POLL_NANOS = 20_000_000L;
+
+    private volatile boolean paused;
+    private volatile long pausedNanos;
+    private long pauseStartNanos;
+
+    // loopCount — число повторов плана или PlaybackOptions.LOOP_FOREVER
+    public void play(PlaybackPlan plan, int loopCount, ActionDispatcher dispatcher, LatencyEstimator latency,
+                     Listener listener) {
+        int playback;
+        synchronized (this) {
+            playback = generation.incrementAndGet();
+            paused = false;
+            pausedNanos = 0;
+        }
+        wakeWorker();
+        executor.execute(() -> run(plan, loopCount, dispatcher, latency, listener, playback));
+    }
+
+    public void cancel() {
+        generation.incrementAndGet();
+        wakeWorker();
+    }
+
+    public synchronized void pause() {
+        if (!paused) {
+            pauseStartNanos = System.nanoTime();
+            paused = true;
+        }
+    }
+
+    public synchronized void resume() {
+        if (paused) {
+            pausedNanos += System.nanoTime() - pauseStartNanos;
+            paused = false;
+            wakeWorker();
+        }
+    }
+
+    // Будит поток, ждущий условия шага ожидания
+    public void onUiEvent() {
+        wakeWorker();
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private void run(PlaybackPlan plan, int loopCount, ActionDispatcher dispatcher, LatencyEstimator latency,
+                     Listener listener, int playback) {
+        worker = Thread.currentThread();
+        boolean completed = false;
+        try {
+            // Повторы идут встык по абсолютным срокам: проход i начинается в start + i * duration
+            long iterationStart = System.nanoTime();
+            int size = plan.size();
+            for (int iteration = 1; loopCount == PlaybackOptions.LOOP_FOREVER || iteration <= loopCount; iteration++) {
+                long maxLatenessNanos = 0;
+                long totalLatenessNanos = 0;
+                long previousOffset = 0;
+                // Суммарное время ожиданий в этом проходе
+                long shiftNanos = 0;
+
+                for (int i = 0; i < size; i++) {
+                    long offset = plan.getOffsetNanos(i);
+                    if (latency != null) {
+                        // Раньше на оценку задержки, но не раньше предыдущего действия
+                        offset = Math.max(previousOffset, offset - latency.getEstimateNanos(plan.getKind(i)));
+                    }
+                    previousOffset = offset;
+                    long deadline = iterationStart + offset + shiftNanos;
+                    if (!waitUntil(deadline, playback)) {
+                        MacroLog.d(MacroLog.PLAYER, "Воспроизведение отменено на действии ", i);
+                        return;
+                    }
+
+                    long lateness = System.nanoTime() - (deadline + pausedNanos);
+                    maxLatenessNanos = Math.max(maxLatenessNanos, lateness);
+                    totalLatenessNanos += lateness;
+
+                    if (plan.isWait(i)) {
+                        if (!awaitCondition(plan, i, dispatcher, playback)) {
+                            MacroLog.d(MacroLog.PLAYER, "Воспроизведение отменено на ожидании ", i);
+                            return;
+                        }
+                        // Следующие шаги отсчитываются от конца ожидания
+                        shiftNanos += System.nanoTime() - pausedNanos - deadline;
+                        continue;
+                    }
+
+                    try {
+                        dispatcher.dispatch(plan, i);
+                    } catch (RuntimeException e) {
+                        MacroLog.e(MacroLog.PLAYER, "Ошибка воспроизведения действия", e);
+                    }
+                }
+
+                long iterationEnd = iterationStart + plan.getDurationNanos() + shiftNanos;
+                if (!waitUntil(iterationEnd, playback)) {
+                    MacroLog.d(MacroLog.PLAYER, "Воспроизведение отменено в конце повтора ", iteration);
+                    return;
+                }
+                if (MacroLog.isEnabled(MacroLog.PLAYER, MacroLog.DEBUG) && size > 0) {
+                    MacroLog.d(MacroLog.PLAYER, "Повтор " + iteration + " завершен, опоздание макс. " +
+                            maxLatenessNanos / 1000 + " мкс, среднее " + totalLatenessNanos / size / 1000 + " мкс");
+                }
+                if (listener != null) {
+                    // Время прохода без пауз
+                    listener.onIterationFinished(iteration, System.nanoTime() - pausedNanos - iterationStart);
+                }
+                iterationStart = iterationEnd;
+            }
+            completed = true;
+        } finally {
+            worker = null;
+            if (listener != null) {
+                listener.onPlaybackFinished(completed);
+            }
+        }
+    }
+
+    // Ждет условия шага ожидания не дольше его таймаута; false — воспроизведение отменено
+    private boolean awaitCondition(PlaybackPlan plan, int index, ActionDispatcher dispatcher, int playback) {
+        long sinceNanos = System.nanoTime();
+        long timeoutNanos = plan.getDurationMs(index) * 1_000_000L;
+        long pausedAtStart = pausedNanos;
+        while (true) {
+            if (generation.get() != playback) {
+                return false;
+            }
+            if (paused) {
+                LockSupport.park(this);
+                continue;
+            }
+            try {
+                if (dispatcher.isConditionMet(plan, index, sinceNanos)) {
+                    return true;
+                }
+            } catch (RuntimeException e) {
+                MacroLog.e(MacroLog.PLAYER, "Ошибка проверки условия ожидания", e);
+                return true;
+            }
+            long remaining = sinceNanos + timeoutNanos + (pausedNanos - pausedAtStart) - System.nanoTime();
+            if (remaining <= 0) {
+                // Как при записи: дальше идем по таймауту
+                MacroLog.d(MacroLog.PLAYER, "Таймаут ожидания на шаге ", index);
+                return true;
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, CONDITION_POLL_NANOS));
+        }
+    }
+
+    // Ждет срока с учетом пауз; false — воспроизведение отменено
+    private boolean waitUntil(long deadline, int playback) {
+        while (true) {
+            if (generation.get() != playback) {
+                return false;
+            }
+            if (paused) {
+                // Ждем resume() или отмены
+                LockSupport.park(this);
+                continue;
+            }
+            long remaining = deadline + pausedNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    private void wakeWorker() {
+        Thread thread = worker;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.macrorecorder.playback;
+
+import com.example.macrorecorder.data.MacroAction;
+
+// Состояние UI для шагов ожидания.
+//
+// События доступности приходят в главный поток сервиса и только отмечают
+// время; условия проверяются на потоке воспроизведения, который будится
+// каждым событием. Дерево окна для WAIT_VIEW_APPEARED обходится только
+// после новых событий, а не при каждой проверке.
+public final class UiEventTracker {
+    // UI считается затихшим, если событий не было столько времени
+    static final long IDLE_QUIET_NANOS = 200_000_000L;
+
+    // Вызывается на потоке воспроизведения
+    public interface ViewLookup {
+        boolean isViewPresent(String viewId);
+    }
+
+    private final ViewLookup viewLookup;
+
+    // Пишутся только главным потоком
+    private volatile long lastEventNanos;
+    private volatile int eventSequence;
+
+    // Только поток воспроизведения: результат последнего поиска view
+    private long checkedSinceNanos;
+    private int checkedSequence;
+    private boolean isViewFound;
+
+    public UiEventTracker(ViewLookup viewLookup) {
+        this.viewLookup = viewLookup;
+    }
+
+    public void onUiEvent(long eventNanos) {
+        lastEventNanos = eventNanos;
+        eventSequence++;
+    }
+
+    // sinceNanos — момент начала ожидания (System.nanoTime())
+    public boolean isConditionMet(int condition, String viewId, long sinceNanos) {
+        long lastEvent = lastEventNanos;
+        boolean changed = lastEvent - sinceNanos > 0;
+        switch (condition) {
+            case MacroAction.WAIT_CONTENT_CHANGED:
+                return changed;
+            case MacroAction.WAIT_VIEW_APPEARED:
+                int sequence = eventSequence;
+                if (sinceNanos != checkedSinceNanos || sequence != checkedSequence) {
+                    checkedSinceNanos = sinceNanos;
+                    checkedSequence = sequence;
+                    isViewFound = viewId != null && viewLookup.isViewPresent(viewId);
+                }
+                return isViewFound;
+            case MacroAction.WAIT_IDLE:
+                return System.nanoTime() - (changed ? lastEvent : sinceNanos) >= IDLE_QUIET_NANOS;
+            case MacroAction.WAIT_SETTLED:
+                return changed && System.nanoTime() - lastEvent >= IDLE_QUIET_NANOS;
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.macrorecorder.recording;
+
+import android.os.Build;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityRecord;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Кольцевой буфер без блокировок для одного писателя (поток сервиса)
+// и одного читателя (поток записи). Поля события, нужные записи, копируются
+// в примитивные слоты. Узел-источник можно получить только через запись
+// события (его id скрыт в API), поэтому хранится копия AccessibilityRecord —
+// без полей и вложенных записей самого события.
+final class EventRing {
+    // Текущая запись при чтении; заполняется и читается только читателем
+    static final class Entry {
+        int eventType;
+        long timestamp;
+        long eventTime;
+        int windowId;
+        int scrollX;
+        int scrollY;
+        int scrollDeltaX;
+        int scrollDeltaY;
+        AccessibilityRecord record;
+    }
+
+    interface Consumer {
+        void accept(Entry entry);
+    }
+
+    private final int mask;
+    private final int[] types;
+    private final long[] timestamps;
+    private final long[] eventTimes;
+    private final int[] windowIds;
+    private final int[] scrollXs;
+    private final int[] scrollYs;
+    private final int[] scrollDeltaXs;
+    private final int[] scrollDeltaYs;
+    private final AccessibilityRecord[] records;
+    private final Entry entry = new Entry();
+
+    // Следующий слот для чтения — меняет только читатель
+    private final AtomicLong head = new AtomicLong();
+    // Следующий слот для записи — меняет только писатель
+    private final AtomicLong tail = new AtomicLong();
+    // Последнее увиденное писателем значение head, чтобы реже читать чужую переменную
+    private long cachedHead;
+
+    EventRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Емкость должна быть степенью двойки: " + capacity);
+        }
+        mask = capacity - 1;
+        types = new int[capacity];
+        timestamps = new long[capacity];
+        eventTimes = new long[capacity];
+        windowIds = new int[capacity];
+        scrollXs = new int[capacity];
+        scrollYs = new int[capacity];
+        scrollDeltaXs = new int[capacity];
+        scrollDeltaYs = new int[capacity];
+        records = new AccessibilityRecord[capacity];
+    }
+
+    // Вызывается только писателем. Возвращает false, если буфер заполнен.
+    boolean offer(int eventType, long timestamp, AccessibilityEvent event) {
+        long t = tail.get();
+        if (t - cachedHead > mask) {
+            cachedHead = head.get();
+            if (t - cachedHead > mask) {
+                return false;
+            }
+        }
+        int index = (int) t & mask;
+        types[index] = eventType;
+        timestamps[index] = timestamp;
+        eventTimes[index] = event.getEventTime();
+        windowIds[index] = event.getWindowId();
+        scrollXs[index] = event.getScrollX();
+        scrollYs[index] = event.getScrollY();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            scrollDeltaXs[index] = event.getScrollDeltaX();
+            scrollDeltaYs[index] = event.getScrollDeltaY();
+        }
+        // Событие переиспользуется системой после возврата из колбэка —
+        // для источника храним копию записи
+        records[index] = AccessibilityRecord.obtain(event);
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Вызывается только читателем. Возвращает число обработанных записей.
+    int drain(Consumer consumer) {
+        long h = head.get();
+        long t = tail.get();
+        int count = 0;
+        for (; h < t; h++) {
+            int index = (int) h & mask;
+            entry.eventType = types[index];
+            entry.timestamp = timestamps[index];
+            entry.eventTime = eventTimes[index];
+            entry.windowId = windowIds[index];
+            entry.scrollX = scrollXs[index];
+            entry.scrollY = scrollYs[index];
+            entry.scrollDeltaX = scrollDeltaXs[index];
+            entry.scrollDeltaY = scrollDeltaYs[index];
+            entry.record = records[index];
+            records[index] = null;
+            try {
+                consumer.accept(entry);
+            } finally {
+                entry.record.recycle();
+                entry.record = null;
+                head.lazySet(h + 1);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    // Вызывается только читателем: отбрасывает записи, опубликованные к этому моменту
+    void discard() {
+        long h = head.get();
+        long t = tail.get();
+        for (; h < t; h++) {
+            int index = (int) h & mask;
+            if (records[index] != null) {
+                records[index].recycle();
+                records[index] = null;
+            }
+            head.lazySet(h + 1);
+        }
+    }
+}
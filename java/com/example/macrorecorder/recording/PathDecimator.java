@@ -0,0 +1,157 @@
+package com.example.macrorecorder.recording;
+
+// Упрощение траектории штриха по ходу записи.
+//
+// Точки ближе допуска к последней сохраненной отбрасываются сразу. Когда
+// буфер заполняется, к накопленным точкам применяется Рамер–Дуглас–Пекер
+// и запись продолжается с упрощенного начала, поэтому память ограничена,
+// а длинный свайп превращается в десятки точек вместо тысяч.
+final class PathDecimator {
+    private static final int MAX_POINTS = 256;
+
+    private final float tolerance;
+    private final float[] xs = new float[MAX_POINTS];
+    private final float[] ys = new float[MAX_POINTS];
+    private final boolean[] keep = new boolean[MAX_POINTS];
+    private final int[] stack = new int[MAX_POINTS * 2];
+    private int size;
+    // Последняя отброшенная точка: нужна, чтобы штрих закончился там, где закончился жест
+    private boolean hasPending;
+    private float pendingX;
+    private float pendingY;
+
+    PathDecimator(float tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    void reset(float x, float y) {
+        xs[0] = x;
+        ys[0] = y;
+        size = 1;
+        hasPending = false;
+    }
+
+    void add(float x, float y) {
+        float dx = x - xs[size - 1];
+        float dy = y - ys[size - 1];
+        if (dx * dx + dy * dy < tolerance * tolerance) {
+            hasPending = true;
+            pendingX = x;
+            pendingY = y;
+            return;
+        }
+        hasPending = false;
+        append(x, y);
+    }
+
+    // Окончательное упрощение; возвращает число точек
+    int finish() {
+        if (hasPending) {
+            hasPending = false;
+            append(pendingX, pendingY);
+        }
+        simplify();
+        return size;
+    }
+
+    private void append(float x, float y) {
+        if (size == MAX_POINTS) {
+            simplify();
+            if (size == MAX_POINTS) {
+                // Траектория не упрощается — уплотняем, отбрасывая каждую вторую точку
+                thin();
+            }
+        }
+        xs[size] = x;
+        ys[size] = y;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    float getX(int index) {
+        return xs[index];
+    }
+
+    float getY(int index) {
+        return ys[index];
+    }
+
+    // Рамер–Дуглас–Пекер без рекурсии, на заранее выделенных массивах
+    private void simplify() {
+        if (size < 3) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            keep[i] = false;
+        }
+        keep[0] = true;
+        keep[size - 1] = true;
+
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = size - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            float maxDistance = 0;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                float distance = distanceToSegment(i, first, last);
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest >= 0 && maxDistance > tolerance) {
+                keep[farthest] = true;
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) {
+                xs[kept] = xs[i];
+                ys[kept] = ys[i];
+                kept++;
+            }
+        }
+        size = kept;
+    }
+
+    private void thin() {
+        int kept = 1;
+        for (int i = 2; i < size - 1; i += 2) {
+            xs[kept] = xs[i];
+            ys[kept] = ys[i];
+            kept++;
+        }
+        xs[kept] = xs[size - 1];
+        ys[kept] = ys[size - 1];
+        size = kept + 1;
+    }
+
+    private float distanceToSegment(int point, int first, int last) {
+        float ax = xs[first];
+        float ay = ys[first];
+        float dx = xs[last] - ax;
+        float dy = ys[last] - ay;
+        float px = xs[point] - ax;
+        float py = ys[point] - ay;
+        float lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return (float) Math.sqrt(px * px + py * py);
+        }
+        float t = Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+        float ex = px - t * dx;
+        float ey = py - t * dy;
+        return (float) Math.sqrt(ex * ex + ey * ey);
+    }
+}
@@ -0,0 +1,454 @@
+package com.example.macrorecorder.recording;
+
+import android.graphics.Rect;
+import android.os.Build;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+import com.example.macrorecorder.data.MacroAction;
+import com.example.macrorecorder.data.ViewIdentity;
+import com.example.macrorecorder.logging.MacroLog;
+import com.example.macrorecorder.repository.RecordingJournal;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Запись действий в отдельном потоке. Колбэк сервиса только копирует поля
+// события в кольцевой буфер; получение источника, координат и запись в журнал
+// выполняются здесь, вне потока доставки событий.
+//
+// В режиме высокой частоты система доставляет события без задержки; повторная
+// доставка того же события (тот же тип, время события, окно и точка) здесь
+// отбрасывается. Настоящие двойные касания остаются разными действиями. Память ограничена: при переполнении кольцевого буфера
+// или буфера записи события отбрасываются и учитываются в статистике.
+//
+// Серия событий прокрутки одного элемента собирается в штрих: палец
+// смещается противоположно прокрутке содержимого. Траектория упрощается
+// по ходу записи и пишется в журнал записями TYPE_STROKE_POINT.
+//
+// Для касаний запоминается и сам view (resource id, класс, текст, путь от
+// корня окна), если его можно найти заново: по resource id или, когда у
+// view нет координат, по пути. По нему воспроизведение находит сместившуюся цель.
+public final class Recorder {
+    private static final int RING_CAPACITY = 1024;
+    // Как часто поток просыпается без событий, чтобы сбросить буфер в журнал
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    // Пауза между прокрутками, после которой начинается новый штрих
+    private static final long STROKE_GAP_MICROS = 300_000;
+    private static final long MIN_STROKE_DURATION_MICROS = 100_000;
+    private static final float STROKE_TOLERANCE_PX = 2f;
+
+    // Текст view обрезается: он нужен только чтобы различать соседние view
+    private static final int MAX_VIEW_TEXT_LENGTH = 64;
+    // Путь строится обходом родителей и их детей, и каждый шаг — межпроцессный
+    // вызов. Глубже или дороже этого путь не строится.
+    private static final int MAX_VIEW_PATH_DEPTH = 32;
+    private static final int MAX_VIEW_PATH_LOOKUPS = 128;
+
+    private final EventRing ring = new EventRing(RING_CAPACITY);
+    private final RecordingBuffer buffer = new RecordingBuffer();
+    private final Rect scratchBounds = new Rect();
+    private final PathDecimator decimator = new PathDecimator(STROKE_TOLERANCE_PX);
+    private final EventRing.Consumer processor = this::process;
+
+    // Снимок для чтения из других потоков
+    private final AtomicInteger recordedCount = new AtomicInteger();
+    private final AtomicInteger droppedCount = new AtomicInteger();
+    private final AtomicInteger mergedCount = new AtomicInteger();
+
+    private volatile Thread thread;
+    private volatile boolean stopping;
+    // Принимает ли capture() события; кольцо между сессиями чистит только читатель
+    private volatile boolean accepting;
+    private volatile boolean consumerParked;
+    private RecordingJournal journal;
+    private long endTimestamp;
+    private IOException failure;
+
+    // Склейка повторов (мкс): 0 — выключена
+    private int lastType;
+    private float lastX;
+    private float lastY;
+    // Время события и окно последнего записанного касания
+    private long lastEventTime;
+    private int lastWindowId;
+
+    // Текущий штрих из событий прокрутки
+    private boolean strokeActive;
+    private final Rect strokeBounds = new Rect();
+    private long strokeStartTime;
+    private long strokeLastTime;
+    private float strokeX;
+    private float strokeY;
+    private int lastScrollX;
+    private int lastScrollY;
+
+    public synchronized void start(RecordingJournal journal) {
+        if (thread != null) {
+            throw new IllegalStateException("Запись уже идет");
+        }
+        this.journal = journal;
+        lastEventTime = -1;
+        buffer.reset();
+        failure = null;
+        stopping = false;
+        recordedCount.set(0);
+        droppedCount.set(0);
+        mergedCount.set(0);
+        strokeActive = false;
+
+        // Добавляем первое действие (начало записи)
+        add(MacroAction.TYPE_TOUCH_DOWN, 0, 0, 0);
+
+        Thread recorderThread = new Thread(this::run, "MacroRecorder");
+        recorderThread.setPriority(Thread.MAX_PRIORITY);
+        thread = recorderThread;
+        recorderThread.start();
+    }
+
+    // Вызывается из колбэка сервиса: только копирование в кольцевой буфер.
+    // timestamp — микросекунды от начала записи.
+    public void capture(int eventType, long timestamp, AccessibilityEvent event) {
+        if (!accepting) {
+            return;
+        }
+        if (!ring.offer(eventType, timestamp, event)) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        MacroLog.trace(MacroLog.RECORDER, MacroLog.TRACE_CAPTURE, eventType, timestamp);
+        if (consumerParked) {
+            Thread recorderThread = thread;
+            if (recorderThread != null) {
+                LockSupport.unpark(recorderThread);
+            }
+        }
+    }
+
+    // Останавливает поток, дописывает конечное действие и все накопленное в журнал
+    public synchronized void stop(long endTimestamp) throws IOException {
+        Thread recorderThread = thread;
+        if (recorderThread == null) {
+            return;
+        }
+        this.endTimestamp = endTimestamp;
+        accepting = false;
+        stopping = true;
+        LockSupport.unpark(recorderThread);
+
+        boolean interrupted = false;
+        while (recorderThread.isAlive()) {
+            try {
+                recorderThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        thread = null;
+        journal = null;
+        MacroLog.i(MacroLog.RECORDER, "Статистика записи: записано " + recordedCount.get() +
+                ", объединено " + mergedCount.get() + ", пропущено " + droppedCount.get());
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public int getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    public int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public int getMergedCount() {
+        return mergedCount.get();
+    }
+
+    private void run() {
+        // Событие, успевшее пройти проверку до конца прошлой сессии, могло
+        // попасть в кольцо после ее последнего чтения
+        ring.discard();
+        accepting = true;
+        while (!stopping) {
+            if (ring.drain(processor) == 0) {
+                consumerParked = true;
+                // Повторная проверка: событие могло прийти до выставления флага
+                if (ring.isEmpty() && !stopping) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                consumerParked = false;
+            }
+            drainToJournal(false);
+        }
+
+        ring.drain(processor);
+        finishStroke();
+        // Добавляем последнее действие (окончание записи)
+        add(MacroAction.TYPE_TOUCH_UP, 0, 0, endTimestamp);
+        drainToJournal(true);
+    }
+
+    private void process(EventRing.Entry entry) {
+        int eventType = entry.eventType;
+        long timestamp = entry.timestamp;
+        if (eventType == MacroAction.TYPE_STROKE) {
+            processScroll(entry);
+            return;
+        }
+        finishStroke();
+
+        AccessibilityNodeInfo source = entry.record.getSource();
+        if (source == null) {
+            MacroLog.w(MacroLog.RECORDER, "Источник события null");
+            return;
+        }
+        try {
+            // Получаем координаты элемента
+            Rect bounds = scratchBounds;
+            source.getBoundsInScreen(bounds);
+            ViewIdentity identity = captureIdentity(source, !bounds.isEmpty());
+
+            float x;
+            float y;
+            if (!bounds.isEmpty()) {
+                // Используем центр элемента
+                x = bounds.left + bounds.width() / 2f;
+                y = bounds.top + bounds.height() / 2f;
+            } else if (identity != null) {
+                // Координат нет: при воспроизведении view находится по описанию
+                x = -1;
+                y = -1;
+            } else {
+                MacroLog.w(MacroLog.RECORDER, "Bounds пустые и view не опознан, событие пропущено");
+                droppedCount.incrementAndGet();
+                return;
+            }
+
+            if (isRepeat(entry, x, y)) {
+                mergedCount.incrementAndGet();
+                return;
+            }
+            if (!add(eventType, x, y, timestamp)) {
+                return;
+            }
+            lastEventTime = entry.eventTime;
+            lastWindowId = entry.windowId;
+            if (identity != null) {
+                try {
+                    journal.appendViewIdentity(buffer.getTotalCount() - 1, identity);
+                } catch (IOException e) {
+                    // Действие останется, воспроизводиться будет по координатам
+                    MacroLog.e(MacroLog.RECORDER, "Ошибка записи описания view", e);
+                }
+            }
+        } catch (RuntimeException e) {
+            MacroLog.e(MacroLog.RECORDER, "Ошибка обработки события", e);
+        } finally {
+            source.recycle();
+        }
+    }
+
+    private void processScroll(EventRing.Entry entry) {
+        long timestamp = entry.timestamp;
+        AccessibilityNodeInfo source = entry.record.getSource();
+        if (source == null) {
+            return;
+        }
+        try {
+            Rect bounds = scratchBounds;
+            source.getBoundsInScreen(bounds);
+            if (bounds.isEmpty()) {
+                return;
+            }
+
+            if (strokeActive && (timestamp - strokeLastTime > STROKE_GAP_MICROS || !sameBounds(bounds))) {
+                finishStroke();
+            }
+
+            int dx;
+            int dy;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                dx = entry.scrollDeltaX;
+                dy = entry.scrollDeltaY;
+            } else {
+                // До Android 9 дельт нет — считаем по абсолютной позиции прокрутки
+                dx = strokeActive ? entry.scrollX - lastScrollX : 0;
+                dy = strokeActive ? entry.scrollY - lastScrollY : 0;
+            }
+            lastScrollX = entry.scrollX;
+            lastScrollY = entry.scrollY;
+
+            if (!strokeActive) {
+                // Штрих начинается из центра прокручиваемого элемента
+                strokeActive = true;
+                strokeBounds.set(bounds);
+                strokeStartTime = timestamp;
+                strokeX = bounds.left + bounds.width() / 2f;
+                strokeY = bounds.top + bounds.height() / 2f;
+                decimator.reset(strokeX, strokeY);
+            }
+
+            // Палец движется против прокрутки содержимого, не выходя за элемент
+            strokeX = Math.max(bounds.left, Math.min(bounds.right - 1, strokeX - dx));
+            strokeY = Math.max(bounds.top, Math.min(bounds.bottom - 1, strokeY - dy));
+            decimator.add(strokeX, strokeY);
+            strokeLastTime = timestamp;
+        } catch (RuntimeException e) {
+            MacroLog.e(MacroLog.RECORDER, "Ошибка обработки прокрутки", e);
+        } finally {
+            source.recycle();
+        }
+    }
+
+    // Описание view или null, если по нему view не найти. Без resource id view
+    // находится только по пути, и он нужен лишь когда нет координат.
+    // При остановке очередь дописывается без путей, чтобы не задерживать stop().
+    private ViewIdentity captureIdentity(AccessibilityNodeInfo source, boolean hasBounds) {
+        String resourceId = source.getViewIdResourceName();
+        if (resourceId == null && hasBounds) {
+            return null;
+        }
+        int[] path = stopping ? null : captureIndexPath(source);
+        if (resourceId == null && path == null) {
+            return null;
+        }
+        CharSequence className = source.getClassName();
+        CharSequence text = source.isPassword() ? null : source.getText();
+        String textValue = null;
+        if (text != null && text.length() > 0) {
+            textValue = text.length() > MAX_VIEW_TEXT_LENGTH
+                    ? text.subSequence(0, MAX_VIEW_TEXT_LENGTH).toString()
+                    : text.toString();
+        }
+        return new ViewIdentity(resourceId, className != null ? className.toString() : null,
+                textValue, path);
+    }
+
+    // Индексы среди детей родителя от корня окна до source; null — путь не построен
+    private static int[] captureIndexPath(AccessibilityNodeInfo source) {
+        int[] reversed = new int[MAX_VIEW_PATH_DEPTH];
+        int depth = 0;
+        int lookups = 0;
+        AccessibilityNodeInfo node = source;
+        AccessibilityNodeInfo parent = source.getParent();
+        try {
+            while (parent != null) {
+                if (depth == MAX_VIEW_PATH_DEPTH) {
+                    return null;
+                }
+                int index = indexOfChild(parent, node, MAX_VIEW_PATH_LOOKUPS - lookups);
+                if (index < 0) {
+                    return null;
+                }
+                lookups += index + 1;
+                reversed[depth++] = index;
+                if (node != source) {
+                    node.recycle();
+                }
+                node = parent;
+                parent = node.getParent();
+            }
+        } finally {
+            if (node != source) {
+                node.recycle();
+            }
+            if (parent != null) {
+                parent.recycle();
+            }
+        }
+
+        int[] path = new int[depth];
+        for (int i = 0; i < depth; i++) {
+            path[i] = reversed[depth - 1 - i];
+        }
+        return path;
+    }
+
+    // -1 — node не найден среди первых maxLookups детей
+    private static int indexOfChild(AccessibilityNodeInfo parent, AccessibilityNodeInfo node, int maxLookups) {
+        int count = Math.min(parent.getChildCount(), maxLookups);
+        for (int i = 0; i < count; i++) {
+            AccessibilityNodeInfo child = parent.getChild(i);
+            if (child == null) {
+                continue;
+            }
+            boolean found = child.equals(node);
+            child.recycle();
+            if (found) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean sameBounds(Rect bounds) {
+        return bounds.left == strokeBounds.left && bounds.top == strokeBounds.top &&
+                bounds.right == strokeBounds.right && bounds.bottom == strokeBounds.bottom;
+    }
+
+    // Дописывает накопленный штрих: начальная точка как действие, остальные как точки журнала
+    private void finishStroke() {
+        if (!strokeActive) {
+            return;
+        }
+        strokeActive = false;
+
+        int count = decimator.finish();
+        if (count < 2) {
+            // Прокрутка без смещения — воспроизводить нечего
+            return;
+        }
+        long duration = Math.max(strokeLastTime - strokeStartTime, MIN_STROKE_DURATION_MICROS);
+        add(MacroAction.TYPE_STROKE, decimator.getX(0), decimator.getY(0), strokeStartTime);
+        for (int i = 1; i < count; i++) {
+            // Время точки — смещение от начала штриха; последняя задает длительность
+            long offset = duration * i / (count - 1);
+            if (!buffer.add(RecordingJournal.TYPE_STROKE_POINT, decimator.getX(i), decimator.getY(i), offset)) {
+                droppedCount.incrementAndGet();
+            }
+        }
+    }
+
+    // Повторная доставка уже записанного касания: у двух настоящих касаний
+    // одного view время события различается
+    private boolean isRepeat(EventRing.Entry entry, float x, float y) {
+        return entry.eventType == lastType && entry.eventTime == lastEventTime &&
+                entry.windowId == lastWindowId && x == lastX && y == lastY;
+    }
+
+    // Возвращает false, если действие отброшено
+    private boolean add(int eventType, float x, float y, long timestamp) {
+        if (!buffer.add(eventType, x, y, timestamp)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        lastType = eventType;
+        lastX = x;
+        lastY = y;
+        recordedCount.incrementAndGet();
+        MacroLog.trace(MacroLog.RECORDER, MacroLog.TRACE_RECORDED, eventType, timestamp);
+        return true;
+    }
+
+    private void drainToJournal(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && !buffer.needsDrain(now)) {
+            return;
+        }
+        try {
+            buffer.drainTo(journal, now);
+        } catch (IOException e) {
+            // Действия остаются в буфере, попробуем при следующем сбросе
+            MacroLog.e(MacroLog.RECORDER, "Ошибка записи в журнал", e);
+            if (force) {
+                failure = e;
+            }
+        }
+    }
+}
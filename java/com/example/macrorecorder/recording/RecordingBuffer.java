@@ -0,0 +1,83 @@
+package com.example.macrorecorder.recording;
+
+import com.example.macrorecorder.repository.RecordingJournal;
+import java.io.IOException;
+
+// Буфер записываемых действий в виде примитивных столбцов (тип, x, y, время).
+// Добавление действия ничего не выделяет в куче; столбцы растут только если
+// журнал временно недоступен, и не больше MAX_CAPACITY. Буфер периодически
+// сливается в журнал пачкой.
+public final class RecordingBuffer {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_CAPACITY = 64 * 1024;
+
+    // Когда сливать буфер в журнал: по числу действий или по времени с прошлого слива.
+    // При падении процесса теряется не больше этого окна.
+    private static final int DRAIN_THRESHOLD = 32;
+    private static final long DRAIN_INTERVAL_MS = 1000;
+
+    private int[] types = new int[INITIAL_CAPACITY];
+    private float[] xs = new float[INITIAL_CAPACITY];
+    private float[] ys = new float[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private int size;
+    private int drained;
+    private long lastDrainTime;
+
+    // Возвращает false, если буфер переполнен и действие не сохранено
+    public boolean add(int eventType, float x, float y, long timestamp) {
+        if (size == types.length) {
+            if (size >= MAX_CAPACITY) {
+                return false;
+            }
+            grow();
+        }
+        types[size] = eventType;
+        xs[size] = x;
+        ys[size] = y;
+        timestamps[size] = timestamp;
+        size++;
+        return true;
+    }
+
+    public boolean needsDrain(long now) {
+        return size >= DRAIN_THRESHOLD || (size > 0 && now - lastDrainTime >= DRAIN_INTERVAL_MS);
+    }
+
+    // Переносит накопленные действия в журнал одной записью
+    public void drainTo(RecordingJournal journal, long now) throws IOException {
+        if (size > 0) {
+            journal.appendBatch(types, xs, ys, timestamps, size);
+            drained += size;
+            size = 0;
+        }
+        lastDrainTime = now;
+    }
+
+    // Всего действий с начала записи, включая уже слитые в журнал
+    public int getTotalCount() {
+        return drained + size;
+    }
+
+    public void reset() {
+        size = 0;
+        drained = 0;
+        lastDrainTime = 0;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        int[] newTypes = new int[capacity];
+        float[] newXs = new float[capacity];
+        float[] newYs = new float[capacity];
+        long[] newTimestamps = new long[capacity];
+        System.arraycopy(types, 0, newTypes, 0, size);
+        System.arraycopy(xs, 0, newXs, 0, size);
+        System.arraycopy(ys, 0, newYs, 0, size);
+        System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+        types = newTypes;
+        xs = newXs;
+        ys = newYs;
+        timestamps = newTimestamps;
+    }
+}
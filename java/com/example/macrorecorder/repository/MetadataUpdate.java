@@ -0,0 +1,52 @@
+package com.example.macrorecorder.repository;
+
+import com.google.gson.annotations.SerializedName;
+import java.util.ArrayList;
+import java.util.List;
+
+// Изменение метаданных пресета (имя, теги, позиция в списке) без перезаписи действий.
+// Несколько изменений можно передать в PresetRepository.updateMetadata одной пачкой.
+public class MetadataUpdate {
+    static final String OP_RENAME = "rename";
+    static final String OP_TAGS = "tags";
+    static final String OP_MOVE = "move";
+
+    @SerializedName("op")
+    final String op;
+
+    @SerializedName("id")
+    final String presetId;
+
+    @SerializedName("name")
+    final String name;
+
+    @SerializedName("tags")
+    final List<String> tags;
+
+    @SerializedName("position")
+    final int position;
+
+    private MetadataUpdate(String op, String presetId, String name, List<String> tags, int position) {
+        this.op = op;
+        this.presetId = presetId;
+        this.name = name;
+        this.tags = tags;
+        this.position = position;
+    }
+
+    public static MetadataUpdate rename(String presetId, String name) {
+        return new MetadataUpdate(OP_RENAME, presetId, name, null, 0);
+    }
+
+    public static MetadataUpdate setTags(String presetId, List<String> tags) {
+        return new MetadataUpdate(OP_TAGS, presetId, null,
+                tags != null ? new ArrayList<>(tags) : new ArrayList<>(), 0);
+    }
+
+    // Перемещает пресет на указанную позицию в списке
+    public static MetadataUpdate move(String presetId, int position) {
+        return new MetadataUpdate(OP_MOVE, presetId, null, null, position);
+    }
+
+    public String getPresetId() { return presetId; }
+}
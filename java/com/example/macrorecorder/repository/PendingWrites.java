@@ -0,0 +1,113 @@
+package com.example.macrorecorder.repository;
+
+import com.example.macrorecorder.data.Preset;
+import com.example.macrorecorder.data.PresetSummary;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Изменения, накопленные за окно группировки и еще не записанные на диск.
+// Повторные изменения одного пресета схлопываются: на диск попадает только
+// последнее состояние. Доступ только под блокировкой PresetRepository.
+final class PendingWrites {
+    final Map<String, Preset> saves = new LinkedHashMap<>();
+    final Set<String> deletes = new LinkedHashSet<>();
+    final List<MetadataUpdate> metadata = new ArrayList<>();
+    boolean currentChanged;
+    String currentId;
+
+    boolean isEmpty() {
+        return saves.isEmpty() && deletes.isEmpty() && metadata.isEmpty() && !currentChanged;
+    }
+
+    void save(Preset preset) {
+        deletes.remove(preset.getId());
+        // Сохранение целиком перекрывает более ранние переименования этого пресета
+        removeMetadata(preset.getId(), MetadataUpdate.OP_RENAME);
+        saves.put(preset.getId(), preset);
+    }
+
+    void delete(String id) {
+        saves.remove(id);
+        removeMetadata(id, null);
+        deletes.add(id);
+        if (currentChanged && id.equals(currentId)) {
+            currentId = null;
+        }
+    }
+
+    void updateMetadata(List<MetadataUpdate> updates) {
+        for (MetadataUpdate update : updates) {
+            Preset saved = saves.get(update.presetId);
+            if (saved != null && MetadataUpdate.OP_RENAME.equals(update.op)) {
+                // Пресет и так будет записан целиком — меняем имя прямо в нем
+                saved.setName(update.name);
+            } else if (!deletes.contains(update.presetId)) {
+                metadata.add(update);
+            }
+        }
+    }
+
+    void setCurrentId(String id) {
+        currentChanged = true;
+        currentId = id;
+    }
+
+    // Накладывает ожидающие изменения на копии сводок с диска
+    List<PresetSummary> applyTo(List<PresetSummary> stored) {
+        Map<String, PresetSummary> result = new LinkedHashMap<>();
+        for (PresetSummary summary : stored) {
+            if (!deletes.contains(summary.getId())) {
+                result.put(summary.getId(), new PresetSummary(summary));
+            }
+        }
+        for (Preset preset : saves.values()) {
+            PresetStorage.putSummary(result, preset);
+        }
+        for (MetadataUpdate update : metadata) {
+            PresetStorage.applyUpdate(result, update);
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    // Имя пресета с учетом ожидающих переименований
+    void applyTo(Preset preset) {
+        for (MetadataUpdate update : metadata) {
+            if (MetadataUpdate.OP_RENAME.equals(update.op) && update.presetId.equals(preset.getId())) {
+                preset.setName(update.name);
+            }
+        }
+    }
+
+    // id измененных пресетов, или null, если изменений несколько
+    String changedPresetId() {
+        Set<String> ids = new LinkedHashSet<>(saves.keySet());
+        ids.addAll(deletes);
+        for (MetadataUpdate update : metadata) {
+            ids.add(update.presetId);
+        }
+        return ids.size() == 1 && !currentChanged ? ids.iterator().next() : null;
+    }
+
+    void clear() {
+        saves.clear();
+        deletes.clear();
+        metadata.clear();
+        currentChanged = false;
+        currentId = null;
+    }
+
+    private void removeMetadata(String id, String op) {
+        Iterator<MetadataUpdate> iterator = metadata.iterator();
+        while (iterator.hasNext()) {
+            MetadataUpdate update = iterator.next();
+            if (update.presetId.equals(id) && (op == null || op.equals(update.op))) {
+                iterator.remove();
+            }
+        }
+    }
+}
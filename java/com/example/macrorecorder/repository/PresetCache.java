@@ -0,0 +1,53 @@
+package com.example.macrorecorder.repository;
+
+import android.util.LruCache;
+import com.example.macrorecorder.data.Preset;
+
+// LRU-кэш разобранных пресетов. Размер считается в действиях, а не в штуках,
+// чтобы несколько длинных записей не вытеснили память всего процесса.
+class PresetCache {
+    private static final int MAX_CACHED_ACTIONS = 200_000;
+
+    private static class Entry {
+        final Preset preset;
+        final long version;
+
+        Entry(Preset preset, long version) {
+            this.preset = preset;
+            this.version = version;
+        }
+    }
+
+    private final LruCache<String, Entry> cache = new LruCache<String, Entry>(MAX_CACHED_ACTIONS) {
+        @Override
+        protected int sizeOf(String key, Entry entry) {
+            // +1, чтобы пустые пресеты тоже занимали место в кэше
+            return entry.preset.getActionCount() + 1;
+        }
+    };
+
+    // Возвращает пресет, только если он не изменился с момента помещения в кэш
+    Preset get(String id, long version) {
+        Entry entry = cache.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.version != version) {
+            cache.remove(id);
+            return null;
+        }
+        return entry.preset;
+    }
+
+    void put(Preset preset, long version) {
+        cache.put(preset.getId(), new Entry(preset, version));
+    }
+
+    void invalidate(String id) {
+        cache.remove(id);
+    }
+
+    void clear() {
+        cache.evictAll();
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.macrorecorder.repository;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Process;
+import androidx.core.content.ContextCompat;
+
+// Рассылает уведомления об изменении пресетов между процессами приложения.
+// Широковещательное сообщение адресовано только нашему пакету; отправитель
+// пропускает собственные сообщения по pid.
+class PresetChangeNotifier extends BroadcastReceiver {
+    private static final String ACTION_PRESETS_CHANGED = "com.example.macrorecorder.action.PRESETS_CHANGED";
+    private static final String EXTRA_PRESET_ID = "preset_id";
+    private static final String EXTRA_SENDER_PID = "sender_pid";
+
+    interface Listener {
+        // presetId == null означает, что изменился индекс или текущий пресет
+        void onRemoteChange(String presetId);
+    }
+
+    private final Context context;
+    private final Listener listener;
+
+    PresetChangeNotifier(Context context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+        ContextCompat.registerReceiver(context, this, new IntentFilter(ACTION_PRESETS_CHANGED),
+                ContextCompat.RECEIVER_NOT_EXPORTED);
+    }
+
+    void notifyChanged(String presetId) {
+        Intent intent = new Intent(ACTION_PRESETS_CHANGED);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(EXTRA_PRESET_ID, presetId);
+        intent.putExtra(EXTRA_SENDER_PID, Process.myPid());
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (intent.getIntExtra(EXTRA_SENDER_PID, -1) == Process.myPid()) {
+            return;
+        }
+        listener.onRemoteChange(intent.getStringExtra(EXTRA_PRESET_ID));
+    }
+}
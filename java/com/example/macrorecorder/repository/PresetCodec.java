@@ -0,0 +1,372 @@
+package com.example.macrorecorder.repository;
+
+import com.example.macrorecorder.data.ActionTimeline;
+import com.example.macrorecorder.data.MacroAction;
+import com.example.macrorecorder.data.Preset;
+import com.example.macrorecorder.data.ViewIdentity;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// Компактный бинарный формат файла пресета.
+//
+// Заголовок: магическое число, версия, id, имя, дата создания, число действий.
+// Каждое действие: байт типа, varint-дельта времени (мкс) и zigzag-varint
+// дельты координат, квантованных до 1/4 пикселя. Задержка не хранится — она
+// выводится из соседних меток времени.
+//
+// У штриха после координат идут varint-длительность (мкс), число точек
+// и zigzag-дельты точек траектории относительно предыдущей точки.
+// У ожидания — varint-условие, varint-таймаут (мкс) и view id.
+// У касаний — байт-признак описания view и, если он 1, resource id, класс,
+// текст и путь индексов (varint-длина и индексы).
+final class PresetCodec {
+    private static final int MAGIC = 0x4D414352; // "MACR"
+    static final int VERSION = 1;
+
+    private static final float COORDINATE_SCALE = 4f;
+
+    private PresetCodec() {}
+
+    static byte[] encode(Preset preset) {
+        ActionTimeline timeline = preset.getTimeline();
+        int size = timeline.size();
+        // Примерная оценка: заголовок + до 8 байт на действие
+        Output out = new Output(64 + size * 8);
+
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeString(preset.getId());
+        out.writeString(preset.getName());
+        out.writeLong(preset.getDateCreated());
+        out.writeVarint(size);
+
+        long prevTime = 0;
+        int prevX = 0;
+        int prevY = 0;
+        for (int i = 0; i < size; i++) {
+            int x = Math.round(timeline.getX(i) * COORDINATE_SCALE);
+            int y = Math.round(timeline.getY(i) * COORDINATE_SCALE);
+            long time = timeline.getTimestampMicros(i);
+
+            out.writeByte(timeline.getType(i));
+            out.writeVarLong(zigzag(time - prevTime));
+            out.writeVarint(zigzag(x - prevX));
+            out.writeVarint(zigzag(y - prevY));
+            if (timeline.getType(i) == MacroAction.TYPE_STROKE) {
+                writeStroke(out, timeline.getPoints(i), timeline.getStrokeDurationMicros(i), x, y);
+            } else if (timeline.getType(i) == MacroAction.TYPE_WAIT) {
+                out.writeVarint(timeline.getWaitCondition(i));
+                out.writeVarLong(timeline.getWaitTimeoutMicros(i));
+                out.writeString(timeline.getViewId(i));
+            } else if (isTap(timeline.getType(i))) {
+                writeViewIdentity(out, timeline.getViewIdentity(i));
+            }
+
+            prevTime = time;
+            prevX = x;
+            prevY = y;
+        }
+        return out.toByteArray();
+    }
+
+    static Preset decode(byte[] data) throws IOException {
+        Input in = new Input(data);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Неверный формат файла пресета");
+        }
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Неподдерживаемая версия формата: " + version);
+        }
+
+        String id = in.readString();
+        String name = in.readString();
+        long dateCreated = in.readLong();
+        int size = in.readVarint();
+        // Каждое действие занимает минимум 4 байта — защита от испорченного счетчика
+        if (size < 0 || size > in.remaining() / 4) {
+            throw new IOException("Неверное число действий: " + size);
+        }
+
+        int[] types = new int[size];
+        float[] xs = new float[size];
+        float[] ys = new float[size];
+        long[] timestamps = new long[size];
+        float[][] points = null;
+        long[] durations = null;
+        int[] waitConditions = null;
+        String[] viewIds = null;
+        ViewIdentity[] views = null;
+
+        long time = 0;
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < size; i++) {
+            types[i] = in.readByte();
+            time += unzigzag(in.readVarLong());
+            x += unzigzag(in.readVarint());
+            y += unzigzag(in.readVarint());
+
+            timestamps[i] = time;
+            xs[i] = x / COORDINATE_SCALE;
+            ys[i] = y / COORDINATE_SCALE;
+
+            if (types[i] == MacroAction.TYPE_STROKE) {
+                if (points == null) {
+                    points = new float[size][];
+                    durations = new long[size];
+                }
+                durations[i] = in.readVarLong();
+                points[i] = readStroke(in, x, y);
+            } else if (types[i] == MacroAction.TYPE_WAIT) {
+                if (points == null) {
+                    points = new float[size][];
+                    durations = new long[size];
+                }
+                if (waitConditions == null) {
+                    waitConditions = new int[size];
+                    viewIds = new String[size];
+                }
+                waitConditions[i] = in.readVarint();
+                durations[i] = in.readVarLong();
+                viewIds[i] = emptyToNull(in.readString());
+            } else if (isTap(types[i])) {
+                ViewIdentity identity = readViewIdentity(in);
+                if (identity != null) {
+                    if (views == null) {
+                        views = new ViewIdentity[size];
+                    }
+                    views[i] = identity;
+                }
+            }
+        }
+
+        return new Preset(id, name, dateCreated, new ActionTimeline(
+                types, xs, ys, timestamps, points, durations, waitConditions, viewIds, views, size));
+    }
+
+    private static boolean isTap(int type) {
+        return type == MacroAction.TYPE_CLICK || type == MacroAction.TYPE_LONG_CLICK;
+    }
+
+    private static void writeViewIdentity(Output out, ViewIdentity identity) {
+        if (identity == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        out.writeString(identity.getResourceId());
+        out.writeString(identity.getClassName());
+        out.writeString(identity.getText());
+        int[] path = identity.getIndexPath();
+        int length = path != null ? path.length : 0;
+        out.writeVarint(length);
+        for (int p = 0; p < length; p++) {
+            out.writeVarint(path[p]);
+        }
+    }
+
+    private static ViewIdentity readViewIdentity(Input in) throws IOException {
+        if (in.readByte() == 0) {
+            return null;
+        }
+        String resourceId = emptyToNull(in.readString());
+        String className = emptyToNull(in.readString());
+        String text = emptyToNull(in.readString());
+        int length = in.readVarint();
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Неверная длина пути view: " + length);
+        }
+        int[] path = null;
+        if (length > 0) {
+            path = new int[length];
+            for (int p = 0; p < length; p++) {
+                path[p] = in.readVarint();
+            }
+        }
+        return new ViewIdentity(resourceId, className, text, path);
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static void writeStroke(Output out, float[] points, long duration, int startX, int startY) {
+        int count = points != null ? points.length / 2 : 0;
+        out.writeVarLong(duration);
+        out.writeVarint(count);
+        int prevX = startX;
+        int prevY = startY;
+        for (int p = 0; p < count; p++) {
+            int x = Math.round(points[p * 2] * COORDINATE_SCALE);
+            int y = Math.round(points[p * 2 + 1] * COORDINATE_SCALE);
+            out.writeVarint(zigzag(x - prevX));
+            out.writeVarint(zigzag(y - prevY));
+            prevX = x;
+            prevY = y;
+        }
+    }
+
+    private static float[] readStroke(Input in, int startX, int startY) throws IOException {
+        int count = in.readVarint();
+        // Каждая точка занимает минимум 2 байта
+        if (count < 0 || count > in.remaining() / 2) {
+            throw new IOException("Неверное число точек штриха: " + count);
+        }
+        float[] points = new float[count * 2];
+        int x = startX;
+        int y = startY;
+        for (int p = 0; p < count; p++) {
+            x += unzigzag(in.readVarint());
+            y += unzigzag(in.readVarint());
+            points[p * 2] = x / COORDINATE_SCALE;
+            points[p * 2 + 1] = y / COORDINATE_SCALE;
+        }
+        return points;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Output {
+        private byte[] buffer;
+        private int position;
+
+        Output(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensureCapacity(4);
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[position];
+            System.arraycopy(buffer, 0, result, 0, position);
+            return result;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (position + extra > buffer.length) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, position + extra)];
+                System.arraycopy(buffer, 0, grown, 0, position);
+                buffer = grown;
+            }
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buffer;
+        private int position;
+
+        Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        int remaining() {
+            return buffer.length - position;
+        }
+
+        int readByte() throws IOException {
+            if (position >= buffer.length) {
+                throw new IOException("Неожиданный конец файла пресета");
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        long readLong() throws IOException {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        int readVarint() throws IOException {
+            int result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                result |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Слишком длинный varint");
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Слишком длинный varint");
+        }
+
+        String readString() throws IOException {
+            int length = readVarint();
+            if (length < 0 || position + length > buffer.length) {
+                throw new IOException("Неверная длина строки");
+            }
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
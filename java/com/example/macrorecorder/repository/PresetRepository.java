@@ -2,82 +2,306 @@ package com.example.macrorecorder.repository;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.example.macrorecorder.data.Preset;
+import com.example.macrorecorder.data.PresetSummary;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class PresetRepository {
     private static final String PREFS_NAME = "macro_recorder_prefs";
     private static final String PRESETS_KEY = "presets";
     private static final String CURRENT_PRESET_KEY = "current_preset_id";
+    private static final String PRESETS_DIR = "presets";
+    private static final String JOURNAL_DIR = "journal";
+
+    // Окно группировки: изменения, пришедшие за это время, записываются одной транзакцией
+    private static final long COMMIT_WINDOW_MS = 300;
+
+    // Один репозиторий на процесс, общий для сервисов и активити
+    private static PresetRepository instance;
+
+    // Слушатель изменений пресетов; вызывается в главном потоке.
+    // presetId == null означает изменение списка или текущего пресета.
+    public interface OnPresetsChangedListener {
+        void onPresetsChanged(String presetId);
+    }
+
+    // Результат асинхронной операции; доставляется в Looper вызывающего потока
+    public interface Callback<T> {
+        void onResult(T result);
+    }
 
     private final SharedPreferences prefs;
     private final Gson gson;
+    private final PresetStorage storage;
+    private final File journalDirectory;
+    private final PresetCache cache = new PresetCache();
+    private final PresetChangeNotifier notifier;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<OnPresetsChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<File> activeJournals = Collections.synchronizedSet(new HashSet<>());
+    private final PendingWrites pending = new PendingWrites();
+    private ScheduledFuture<?> scheduledCommit;
+
+    // Все обращения к диску выполняются последовательно в одном фоновом потоке
+    private final ScheduledExecutorService ioExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "PresetRepository-io");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
 
-    public PresetRepository(Context context) {
+    public static synchronized PresetRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new PresetRepository(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private PresetRepository(Context context) {
         prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         gson = new Gson();
+        storage = new PresetStorage(new File(context.getFilesDir(), PRESETS_DIR), gson);
+        journalDirectory = new File(context.getFilesDir(), JOURNAL_DIR);
+        // Миграция сохраняет через notifier, поэтому он создается до нее
+        notifier = new PresetChangeNotifier(context, this::onRemoteChange);
+        // Миграция ставится первой в очередь, поэтому асинхронные операции ее дождутся
+        ioExecutor.execute(this::migrateLegacyPresets);
     }
 
-    public void savePreset(Preset preset) {
-        List<Preset> presets = getAllPresets();
+    public void addOnPresetsChangedListener(OnPresetsChangedListener listener) {
+        listeners.add(listener);
+    }
 
-        // Если пресет с таким ID уже существует, заменяем его
-        for (int i = 0; i < presets.size(); i++) {
-            if (presets.get(i).getId().equals(preset.getId())) {
-                presets.set(i, preset);
-                saveAllPresets(presets);
-                return;
+    public void removeOnPresetsChangedListener(OnPresetsChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void loadPresetAsync(String id, Callback<Preset> callback) {
+        submit(() -> getPresetById(id), callback);
+    }
+
+    public void loadCurrentPresetAsync(Callback<Preset> callback) {
+        submit(this::getCurrentPreset, callback);
+    }
+
+    public void loadPresetSummariesAsync(Callback<List<PresetSummary>> callback) {
+        submit(this::getPresetSummaries, callback);
+    }
+
+    public void savePresetAsync(Preset preset, Callback<Void> callback) {
+        submit(() -> {
+            savePreset(preset);
+            return null;
+        }, callback);
+    }
+
+    public void deletePresetAsync(String id, Callback<Void> callback) {
+        submit(() -> {
+            deletePreset(id);
+            return null;
+        }, callback);
+    }
+
+    public void renamePresetAsync(String id, String name, Callback<Void> callback) {
+        submit(() -> {
+            renamePreset(id, name);
+            return null;
+        }, callback);
+    }
+
+    public void updateMetadataAsync(List<MetadataUpdate> updates, Callback<Void> callback) {
+        submit(() -> {
+            updateMetadata(updates);
+            return null;
+        }, callback);
+    }
+
+    public void setCurrentPresetIdAsync(String id, Callback<Void> callback) {
+        submit(() -> {
+            setCurrentPresetId(id);
+            return null;
+        }, callback);
+    }
+
+    public void commitJournalAsync(RecordingJournal journal, Callback<Preset> callback) {
+        submit(() -> {
+            try {
+                return commitJournal(journal);
+            } catch (IOException e) {
+                // Журнал остается на диске и будет восстановлен при следующем запуске
+                Log.e("PresetRepository", "Ошибка сохранения записи: " + e.getMessage());
+                return null;
             }
-        }
+        }, callback);
+    }
 
-        // Иначе добавляем новый
-        presets.add(preset);
-        saveAllPresets(presets);
+    public void recoverInterruptedRecordingsAsync(Callback<Integer> callback) {
+        submit(this::recoverInterruptedRecordings, callback);
+    }
+
+    // Выполняет операцию в фоновом потоке и возвращает результат в Looper вызывающего потока
+    // (или в главный поток, если у вызывающего потока нет Looper)
+    private <T> void submit(Callable<T> operation, Callback<T> callback) {
+        Looper looper = Looper.myLooper();
+        Handler handler = looper != null ? new Handler(looper) : mainHandler;
+        ioExecutor.execute(() -> {
+            T result = null;
+            try {
+                result = operation.call();
+            } catch (Exception e) {
+                Log.e("PresetRepository", "Ошибка фоновой операции: " + e.getMessage());
+            }
+            if (callback != null) {
+                T delivered = result;
+                handler.post(() -> callback.onResult(delivered));
+            }
+        });
     }
 
-    public List<Preset> getAllPresets() {
-        String json = prefs.getString(PRESETS_KEY, "[]");
-        Type type = new TypeToken<List<Preset>>(){}.getType();
-        List<Preset> presets = gson.fromJson(json, type);
-        return presets != null ? presets : new ArrayList<>();
+    // Сохранение откладывается на окно группировки; чтения сразу видят новое состояние
+    public synchronized void savePreset(Preset preset) {
+        pending.save(preset);
+        scheduleCommit(preset.getId());
     }
 
-    public Preset getPresetById(String id) {
-        for (Preset preset : getAllPresets()) {
-            if (preset.getId().equals(id)) {
-                return preset;
+    public synchronized List<Preset> getAllPresets() {
+        List<Preset> presets = new ArrayList<>();
+        for (PresetSummary summary : getPresetSummaries()) {
+            Preset preset = getPresetById(summary.getId());
+            if (preset != null) {
+                presets.add(preset);
             }
         }
-        return null;
+        return presets;
     }
 
-    public void deletePreset(String id) {
-        List<Preset> presets = getAllPresets();
-        for (int i = 0; i < presets.size(); i++) {
-            if (presets.get(i).getId().equals(id)) {
-                presets.remove(i);
-                saveAllPresets(presets);
+    // Только метаданные из индекса: действия пресетов не читаются
+    public synchronized List<PresetSummary> getPresetSummaries() {
+        List<PresetSummary> summaries = storage.getSummaries();
+        return pending.isEmpty() ? summaries : pending.applyTo(summaries);
+    }
 
-                // Если удаляем текущий пресет, сбрасываем выбор
-                if (id.equals(getCurrentPresetId())) {
-                    setCurrentPresetId(null);
-                }
-                break;
+    public synchronized Preset getPresetById(String id) {
+        if (id == null || pending.deletes.contains(id)) {
+            return null;
+        }
+        Preset pendingPreset = pending.saves.get(id);
+        if (pendingPreset != null) {
+            return pendingPreset;
+        }
+
+        long version = storage.getVersion(id);
+        if (version == 0) {
+            cache.invalidate(id);
+            return null;
+        }
+
+        Preset preset = cache.get(id, version);
+        if (preset == null) {
+            preset = storage.load(id);
+            if (preset != null) {
+                cache.put(preset, version);
             }
+        } else {
+            // Имя могло измениться без перезаписи файла действий
+            PresetStorage.applyMetadata(preset, storage.getSummary(id));
+        }
+        if (preset != null) {
+            pending.applyTo(preset);
+        }
+        return preset;
+    }
+
+    // Версия файла действий пресета для кэшей производных данных.
+    // 0 — пресета нет или его последние изменения еще не записаны на диск.
+    public synchronized long getPresetVersion(String id) {
+        if (id == null || pending.deletes.contains(id) || pending.saves.containsKey(id)) {
+            return 0;
+        }
+        return storage.getVersion(id);
+    }
+
+    public synchronized void deletePreset(String id) {
+        cache.invalidate(id);
+        // Сброс текущего пресета выполняется при записи под той же блокировкой
+        pending.delete(id);
+        scheduleCommit(id);
+    }
+
+    // Переименование меняет только метаданные, файл с действиями не перезаписывается
+    public void renamePreset(String id, String name) {
+        updateMetadata(Collections.singletonList(MetadataUpdate.rename(id, name)));
+    }
+
+    // Несколько переименований/перестановок/тегов записываются одной операцией
+    public synchronized void updateMetadata(List<MetadataUpdate> updates) {
+        if (updates.isEmpty()) {
+            return;
         }
+        pending.updateMetadata(updates);
+        scheduleCommit(updates.size() == 1 ? updates.get(0).getPresetId() : null);
     }
 
-    public String getCurrentPresetId() {
-        return prefs.getString(CURRENT_PRESET_KEY, null);
+    public synchronized String getCurrentPresetId() {
+        String id = pending.currentChanged ? pending.currentId : storage.getCurrentId();
+        return id != null && !pending.deletes.contains(id) ? id : null;
     }
 
-    public void setCurrentPresetId(String id) {
-        prefs.edit().putString(CURRENT_PRESET_KEY, id).apply();
+    public synchronized void setCurrentPresetId(String id) {
+        pending.setCurrentId(id);
+        scheduleCommit(null);
+    }
+
+    // Записывает все отложенные изменения немедленно. Вызывается при остановке сервисов,
+    // чтобы ничего не потерять, и перед операциями, которым нужна гарантия записи.
+    public synchronized boolean flush() {
+        if (scheduledCommit != null) {
+            scheduledCommit.cancel(false);
+            scheduledCommit = null;
+        }
+        if (pending.isEmpty()) {
+            return true;
+        }
+
+        if (!storage.commit(pending)) {
+            // Изменения остаются в очереди и будут записаны при следующей попытке
+            scheduleCommit(null);
+            return false;
+        }
+
+        for (Preset preset : pending.saves.values()) {
+            cache.put(preset, storage.getVersion(preset.getId()));
+        }
+        notifier.notifyChanged(pending.changedPresetId());
+        pending.clear();
+        return true;
+    }
+
+    // Локальные слушатели узнают об изменении сразу (чтения уже видят новое состояние),
+    // другой процесс — после записи на диск
+    private void scheduleCommit(String presetId) {
+        notifyListeners(presetId);
+        if (scheduledCommit == null || scheduledCommit.isDone()) {
+            scheduledCommit = ioExecutor.schedule(this::flush, COMMIT_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
     }
 
     public Preset getCurrentPreset() {
@@ -85,9 +309,156 @@ public class PresetRepository {
         return id != null ? getPresetById(id) : null;
     }
 
-    private void saveAllPresets(List<Preset> presets) {
-        String json = gson.toJson(presets);
-        prefs.edit().putString(PRESETS_KEY, json).apply();
+    // Начинает журнал новой записи; действия пишутся в файл по мере поступления
+    public RecordingJournal startJournal(String presetName) throws IOException {
+        RecordingJournal journal = RecordingJournal.create(journalDirectory, generateId(), presetName);
+        activeJournals.add(journal.getFile());
+        return journal;
+    }
+
+    // Превращает завершенный журнал в пресет и удаляет журнал
+    public Preset commitJournal(RecordingJournal journal) throws IOException {
+        journal.close();
+        Preset preset = RecordingJournal.read(journal.getFile());
+        savePreset(preset);
+        // Журнал можно удалить только после того, как пресет точно записан
+        if (!flush()) {
+            throw new IOException("Не удалось сохранить пресет " + preset.getId());
+        }
+        deleteJournalFile(journal.getFile());
+        activeJournals.remove(journal.getFile());
+        return preset;
+    }
+
+    public void discardJournal(RecordingJournal journal) {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            Log.w("PresetRepository", "Ошибка закрытия журнала: " + e.getMessage());
+        }
+        deleteJournalFile(journal.getFile());
+        activeJournals.remove(journal.getFile());
+    }
+
+    // Восстанавливает записи, прерванные падением процесса. Вызывать до начала новой записи.
+    public synchronized int recoverInterruptedRecordings() {
+        File[] files = journalDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        List<File> recoveredFiles = new ArrayList<>();
+        for (File file : files) {
+            // Журналы, в которые сейчас идет запись, не трогаем
+            if (!file.getName().endsWith(RecordingJournal.EXTENSION) || activeJournals.contains(file)) {
+                continue;
+            }
+            try {
+                Preset preset = RecordingJournal.read(file);
+                if (preset.getActionCount() > 0) {
+                    savePreset(preset);
+                }
+                recoveredFiles.add(file);
+            } catch (IOException | RuntimeException e) {
+                Log.e("PresetRepository", "Не удалось восстановить запись " + file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        // Все восстановленные пресеты записываются одной транзакцией, затем удаляются журналы
+        if (recoveredFiles.isEmpty() || !flush()) {
+            return 0;
+        }
+        for (File file : recoveredFiles) {
+            deleteJournalFile(file);
+        }
+        return recoveredFiles.size();
+    }
+
+    private void deleteJournalFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w("PresetRepository", "Не удалось удалить журнал " + file.getName());
+        }
+        File viewsFile = RecordingJournal.getViewsFile(file);
+        if (viewsFile.exists() && !viewsFile.delete()) {
+            Log.w("PresetRepository", "Не удалось удалить " + viewsFile.getName());
+        }
+    }
+
+    // Изменение из другого процесса: сбрасываем только затронутые данные
+    private void onRemoteChange(String presetId) {
+        synchronized (this) {
+            storage.invalidate();
+            if (presetId != null) {
+                cache.invalidate(presetId);
+            }
+        }
+        notifyListeners(presetId);
+    }
+
+    private void notifyListeners(String presetId) {
+        mainHandler.post(() -> {
+            for (OnPresetsChangedListener listener : listeners) {
+                listener.onPresetsChanged(presetId);
+            }
+        });
+    }
+
+    // JSON остается только форматом импорта/экспорта; на диске пресеты хранятся в бинарном виде
+    public String exportPreset(Preset preset) {
+        // Gson читает поле actions напрямую, а у пресета с диска оно пусто:
+        // действия есть только в timeline. Сериализуем копию со списком из getActions().
+        Preset exported = new Preset(preset.getId(), preset.getName(), preset.getDateCreated(),
+                preset.getActions());
+        return gson.toJson(exported);
+    }
+
+    public Preset importPreset(String json) {
+        try {
+            Preset preset = gson.fromJson(json, Preset.class);
+            if (preset == null) {
+                return null;
+            }
+            if (preset.getId() == null || getPresetById(preset.getId()) != null) {
+                preset.setId(generateId());
+            }
+            savePreset(preset);
+            return preset;
+        } catch (RuntimeException e) {
+            Log.e("PresetRepository", "Ошибка импорта пресета: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Переносим пресеты из старого формата (одна JSON-строка в SharedPreferences) в файлы
+    private void migrateLegacyPresets() {
+        String json = prefs.getString(PRESETS_KEY, null);
+        if (json != null) {
+            migrateLegacyPresetList(json);
+        }
+
+        // Текущий пресет раньше тоже хранился в SharedPreferences
+        if (prefs.contains(CURRENT_PRESET_KEY)) {
+            setCurrentPresetId(prefs.getString(CURRENT_PRESET_KEY, null));
+            if (flush()) {
+                prefs.edit().remove(CURRENT_PRESET_KEY).apply();
+            }
+        }
+    }
+
+    private void migrateLegacyPresetList(String json) {
+        try {
+            Type type = new TypeToken<List<Preset>>(){}.getType();
+            List<Preset> presets = gson.fromJson(json, type);
+            if (presets != null && !presets.isEmpty() && !storage.saveAll(presets)) {
+                // Оставляем старые данные, попробуем снова при следующем запуске
+                return;
+            }
+            prefs.edit().remove(PRESETS_KEY).apply();
+            Log.d("PresetRepository", "Перенесено пресетов из SharedPreferences: " +
+                    (presets != null ? presets.size() : 0));
+        } catch (RuntimeException e) {
+            Log.e("PresetRepository", "Ошибка миграции пресетов: " + e.getMessage());
+        }
     }
 
     public static String generateId() {
@@ -0,0 +1,435 @@
+package com.example.macrorecorder.repository;
+
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.example.macrorecorder.data.Preset;
+import com.example.macrorecorder.data.PresetSummary;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Хранилище пресетов: один файл на пресет + небольшой индекс с метаданными.
+// Загрузка или сохранение одного пресета затрагивает только его файл и индекс.
+//
+// Хранилищем пользуются два процесса (основной и :accessibility_process),
+// поэтому все операции выполняются под файловой блокировкой. В начале файла
+// блокировки лежит счетчик изменений: каждый пишущий увеличивает его до
+// изменения файлов, и индекс в памяти перечитывается, только если счетчик
+// отличается от прочитанного вместе с индексом.
+//
+// Метаданные (имя, теги, порядок) меняются без перезаписи индекса: изменения
+// дописываются строками в metadata.log и применяются поверх index.json при чтении.
+// Когда журнал разрастается, он сворачивается в индекс.
+class PresetStorage {
+    private static final String TAG = "PresetStorage";
+    private static final String INDEX_FILE = "index.json";
+    private static final String CURRENT_FILE = "current_preset";
+    private static final String METADATA_LOG = "metadata.log";
+    private static final int MAX_METADATA_LOG_ENTRIES = 64;
+    private static final String LOCK_FILE = ".lock";
+    private static final String PRESET_EXTENSION = ".bin";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private interface LockedOperation<T> {
+        T run() throws IOException;
+    }
+
+    private final File directory;
+    private final Gson gson;
+    private FileChannel lockChannel;
+
+    // Индекс в памяти, порядок совпадает с порядком добавления пресетов
+    private Map<String, PresetSummary> index;
+    // Счетчик изменений, которому соответствует индекс в памяти
+    private long indexVersion;
+    private int metadataLogEntries;
+
+    PresetStorage(File directory, Gson gson) {
+        this.directory = directory;
+        this.gson = gson;
+    }
+
+    synchronized List<PresetSummary> getSummaries() {
+        List<PresetSummary> summaries = withLock(true, () -> new ArrayList<>(getIndex().values()));
+        return summaries != null ? summaries : new ArrayList<>();
+    }
+
+    synchronized PresetSummary getSummary(String id) {
+        return withLock(true, () -> getIndex().get(id));
+    }
+
+    // Версия файла пресета: меняется при каждой перезаписи, 0 если пресета нет
+    synchronized long getVersion(String id) {
+        if (id == null) {
+            return 0;
+        }
+        Long version = withLock(true, () -> {
+            if (!getIndex().containsKey(id)) {
+                return 0L;
+            }
+            return presetFile(id).lastModified();
+        });
+        return version != null ? version : 0;
+    }
+
+    synchronized Preset load(String id) {
+        if (id == null) {
+            return null;
+        }
+        return withLock(true, () -> {
+            if (!getIndex().containsKey(id)) {
+                return null;
+            }
+
+            File file = presetFile(id);
+            Preset preset = file.exists() ? PresetCodec.decode(readFully(file)) : null;
+            if (preset != null) {
+                applyMetadata(preset, getIndex().get(id));
+            }
+            return preset;
+        });
+    }
+
+    // Метаданные из индекса главнее копии в файле пресета: переименование не трогает файл действий
+    static void applyMetadata(Preset preset, PresetSummary summary) {
+        if (summary != null) {
+            preset.setName(summary.getName());
+            preset.setDateCreated(summary.getDateCreated());
+        }
+    }
+
+    // Изменения метаданных дописываются в журнал — O(1) по объему ввода-вывода;
+    // когда журнал разрастается, он сворачивается в индекс
+    private void appendMetadata(Map<String, PresetSummary> current, List<MetadataUpdate> updates)
+            throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (MetadataUpdate update : updates) {
+            if (current.containsKey(update.presetId)) {
+                applyUpdate(current, update);
+                lines.append(gson.toJson(update)).append('\n');
+                metadataLogEntries++;
+            }
+        }
+        if (lines.length() == 0) {
+            return;
+        }
+
+        if (metadataLogEntries > MAX_METADATA_LOG_ENTRIES) {
+            writeIndex();
+        } else {
+            appendMetadataLog(lines.toString());
+        }
+    }
+
+    // Записывает все накопленные изменения одной транзакцией: файлы пресетов,
+    // затем индекс (атомарное переименование — точка фиксации), затем текущий пресет.
+    // Если изменились только метаданные, индекс не переписывается — хватает дозаписи в журнал.
+    synchronized boolean commit(PendingWrites pending) {
+        Boolean committed = withLock(false, () -> {
+            Map<String, PresetSummary> current = getIndex();
+            bumpVersion();
+            if (pending.saves.isEmpty() && pending.deletes.isEmpty()) {
+                appendMetadata(current, pending.metadata);
+            } else {
+                for (Preset preset : pending.saves.values()) {
+                    writeAtomically(presetFile(preset.getId()), PresetCodec.encode(preset));
+                    putSummary(current, preset);
+                }
+                for (String id : pending.deletes) {
+                    current.remove(id);
+                }
+                for (MetadataUpdate update : pending.metadata) {
+                    applyUpdate(current, update);
+                }
+                writeIndex();
+
+                for (String id : pending.deletes) {
+                    deletePresetFiles(id);
+                }
+            }
+
+            String currentId = pending.currentChanged ? pending.currentId : readCurrentId();
+            if (currentId != null && !current.containsKey(currentId)) {
+                currentId = null;
+            }
+            if (pending.currentChanged || !pending.deletes.isEmpty()) {
+                writeCurrentId(currentId);
+            }
+            return true;
+        });
+        return committed != null;
+    }
+
+    // Сохраняет несколько пресетов с одной записью индекса (используется при миграции)
+    synchronized boolean saveAll(List<Preset> presets) {
+        Boolean saved = withLock(false, () -> {
+            Map<String, PresetSummary> current = getIndex();
+            bumpVersion();
+            for (Preset preset : presets) {
+                writeAtomically(presetFile(preset.getId()), PresetCodec.encode(preset));
+                putSummary(current, preset);
+            }
+            writeIndex();
+            return true;
+        });
+        return saved != null;
+    }
+
+    private void deletePresetFiles(String id) {
+        File file = presetFile(id);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Не удалось удалить файл пресета " + id);
+        }
+    }
+
+    // Текущий пресет хранится рядом с индексом, а не в SharedPreferences,
+    // которые не согласованы между процессами
+    synchronized String getCurrentId() {
+        return withLock(true, this::readCurrentId);
+    }
+
+    // Сбрасывает индекс в памяти; используется при уведомлении об изменениях из другого процесса
+    synchronized void invalidate() {
+        index = null;
+    }
+
+    private <T> T withLock(boolean shared, LockedOperation<T> operation) {
+        FileLock lock = null;
+        try {
+            lock = acquireLock(shared);
+            return operation.run();
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Ошибка хранилища пресетов: " + e.getMessage());
+            // Индекс в памяти мог разойтись с диском — перечитаем при следующем обращении
+            index = null;
+            return null;
+        } finally {
+            if (lock != null) {
+                try {
+                    lock.release();
+                } catch (IOException e) {
+                    Log.w(TAG, "Не удалось снять блокировку: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private FileLock acquireLock(boolean shared) throws IOException {
+        if (lockChannel == null) {
+            ensureDirectory();
+            lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        }
+        return lockChannel.lock(0, Long.MAX_VALUE, shared);
+    }
+
+    // Перечитываем индекс и журнал метаданных, только если с прошлого чтения
+    // кто-то изменил хранилище. Вызывается под блокировкой.
+    private Map<String, PresetSummary> getIndex() throws IOException {
+        long version = readVersion();
+        if (index == null || version != indexVersion) {
+            index = readIndex();
+            replayMetadataLog(index);
+            indexVersion = version;
+        }
+        return index;
+    }
+
+    // Счетчик изменений из файла блокировки; 0 — хранилище еще не менялось
+    private long readVersion() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        while (buffer.hasRemaining()) {
+            if (lockChannel.read(buffer, buffer.position()) < 0) {
+                return 0;
+            }
+        }
+        buffer.flip();
+        return buffer.getLong();
+    }
+
+    // Вызывается под исключительной блокировкой до изменения файлов: если запись
+    // оборвется, другой процесс все равно перечитает индекс
+    private void bumpVersion() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(indexVersion + 1);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            lockChannel.write(buffer, buffer.position());
+        }
+        indexVersion++;
+    }
+
+    // Новая сводка сохраняет теги и позицию прежней записи
+    static void putSummary(Map<String, PresetSummary> index, Preset preset) {
+        PresetSummary summary = PresetSummary.from(preset);
+        PresetSummary previous = index.get(preset.getId());
+        if (previous != null) {
+            summary.setTags(previous.getTags());
+        }
+        index.put(preset.getId(), summary);
+    }
+
+    static void applyUpdate(Map<String, PresetSummary> index, MetadataUpdate update) {
+        PresetSummary summary = index.get(update.presetId);
+        if (summary == null) {
+            return;
+        }
+
+        switch (update.op) {
+            case MetadataUpdate.OP_RENAME:
+                summary.setName(update.name);
+                break;
+            case MetadataUpdate.OP_TAGS:
+                summary.setTags(update.tags);
+                break;
+            case MetadataUpdate.OP_MOVE:
+                // LinkedHashMap хранит порядок вставки — пересобираем его с новой позицией
+                List<PresetSummary> ordered = new ArrayList<>(index.values());
+                ordered.remove(summary);
+                ordered.add(Math.max(0, Math.min(update.position, ordered.size())), summary);
+                index.clear();
+                for (PresetSummary item : ordered) {
+                    index.put(item.getId(), item);
+                }
+                break;
+        }
+    }
+
+    private void replayMetadataLog(Map<String, PresetSummary> target) throws IOException {
+        File file = new File(directory, METADATA_LOG);
+        metadataLogEntries = 0;
+        if (!file.exists()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                try {
+                    MetadataUpdate update = gson.fromJson(line, MetadataUpdate.class);
+                    if (update != null && update.op != null) {
+                        applyUpdate(target, update);
+                        metadataLogEntries++;
+                    }
+                } catch (RuntimeException e) {
+                    // Оборванная последняя строка после падения — пропускаем
+                    Log.w(TAG, "Пропущена поврежденная запись журнала метаданных");
+                }
+            }
+        }
+    }
+
+    private void appendMetadataLog(String lines) throws IOException {
+        ensureDirectory();
+        File file = new File(directory, METADATA_LOG);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(lines.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    private Map<String, PresetSummary> readIndex() throws IOException {
+        Map<String, PresetSummary> result = new LinkedHashMap<>();
+        File file = new File(directory, INDEX_FILE);
+        if (!file.exists()) {
+            return result;
+        }
+
+        // Читаем индекс потоково, по одной записи, без промежуточного списка
+        try (JsonReader reader = new JsonReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                PresetSummary summary = gson.fromJson(reader, PresetSummary.class);
+                if (summary != null && summary.getId() != null) {
+                    result.put(summary.getId(), summary);
+                }
+            }
+            reader.endArray();
+        }
+        return result;
+    }
+
+    // Записывает индекс целиком; журнал метаданных после этого уже учтен и удаляется
+    private void writeIndex() throws IOException {
+        File file = new File(directory, INDEX_FILE);
+        writeAtomically(file, gson.toJson(new ArrayList<>(index.values())).getBytes(StandardCharsets.UTF_8));
+
+        File log = new File(directory, METADATA_LOG);
+        if (log.exists() && !log.delete()) {
+            throw new IOException("Не удалось очистить журнал метаданных");
+        }
+        metadataLogEntries = 0;
+    }
+
+    private String readCurrentId() throws IOException {
+        File file = new File(directory, CURRENT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        String id = new String(readFully(file), StandardCharsets.UTF_8).trim();
+        return id.isEmpty() ? null : id;
+    }
+
+    private void writeCurrentId(String id) throws IOException {
+        writeAtomically(new File(directory, CURRENT_FILE),
+                (id != null ? id : "").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Пишем во временный файл и переименовываем, чтобы не оставить полузаписанный файл
+    private void writeAtomically(File target, byte[] content) throws IOException {
+        ensureDirectory();
+
+        File temp = new File(directory, target.getName() + TEMP_EXTENSION);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(content);
+            out.getFD().sync();
+        }
+
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Не удалось переименовать " + temp + " в " + target);
+        }
+    }
+
+    private void ensureDirectory() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Не удалось создать каталог " + directory);
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Файл " + file + " обрезан");
+                }
+                offset += read;
+            }
+            return data;
+        }
+    }
+
+    private File presetFile(String id) {
+        return new File(directory, id + PRESET_EXTENSION);
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.macrorecorder.repository;
+
+import com.example.macrorecorder.data.ActionTimeline;
+import com.example.macrorecorder.data.MacroAction;
+import com.example.macrorecorder.data.Preset;
+import com.example.macrorecorder.data.ViewIdentity;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Журнал текущей записи: действия дописываются в файл по мере поступления,
+// поэтому память не растет с длиной записи, а при падении процесса
+// запись можно восстановить при следующем запуске.
+//
+// Формат: заголовок (магическое число, версия, id, имя, дата начала),
+// затем записи фиксированного размера: тип, x, y, время (мкс от начала записи).
+// Точки траектории штриха пишутся следующими за ним записями типа
+// TYPE_STROKE_POINT, где время — смещение от начала штриха.
+//
+// Описания нажатых view пишутся в соседний файл <id>.views записями
+// (номер записи журнала, ViewIdentity): они нужны редко и имеют переменную
+// длину, поэтому не раздувают записи фиксированного размера.
+public class RecordingJournal implements Closeable {
+    static final String EXTENSION = ".journal";
+    static final String VIEWS_EXTENSION = ".views";
+
+    // Служебный тип записи журнала: очередная точка предыдущего штриха
+    public static final int TYPE_STROKE_POINT = 0xFF;
+
+    private static final int MAGIC = 0x4D41434A; // "MACJ"
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 1 + 4 + 4 + 8;
+    private static final int READ_CHUNK_RECORDS = 4096;
+
+    private final File file;
+    private final String presetId;
+    private final long dateCreated;
+    private DataOutputStream out;
+    // Открывается при первом описании view
+    private DataOutputStream viewsOut;
+
+    private RecordingJournal(File file, String presetId, long dateCreated) {
+        this.file = file;
+        this.presetId = presetId;
+        this.dateCreated = dateCreated;
+    }
+
+    static RecordingJournal create(File directory, String presetId, String presetName) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Не удалось создать каталог " + directory);
+        }
+
+        RecordingJournal journal = new RecordingJournal(
+                new File(directory, presetId + EXTENSION), presetId, System.currentTimeMillis());
+        journal.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal.file)));
+        journal.out.writeInt(MAGIC);
+        journal.out.writeByte(VERSION);
+        journal.out.writeUTF(presetId);
+        journal.out.writeUTF(presetName != null ? presetName : "");
+        journal.out.writeLong(journal.dateCreated);
+        journal.out.flush();
+        return journal;
+    }
+
+    // Данные сбрасываются в ОС после каждого действия: при убийстве процесса они не теряются
+    public synchronized void append(int eventType, float x, float y, long timestamp) throws IOException {
+        if (out == null) {
+            throw new IOException("Журнал закрыт");
+        }
+        out.writeByte(eventType);
+        out.writeFloat(x);
+        out.writeFloat(y);
+        out.writeLong(timestamp);
+        out.flush();
+    }
+
+    // Дописывает пачку действий одним сбросом в ОС
+    public synchronized void appendBatch(int[] eventTypes, float[] xs, float[] ys, long[] timestamps, int size)
+            throws IOException {
+        if (out == null) {
+            throw new IOException("Журнал закрыт");
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeByte(eventTypes[i]);
+            out.writeFloat(xs[i]);
+            out.writeFloat(ys[i]);
+            out.writeLong(timestamps[i]);
+        }
+        out.flush();
+    }
+
+    // recordIndex — номер записи журнала с начала записи, включая точки штрихов.
+    // Запись может быть еще в буфере: при восстановлении описания без записи отбрасываются.
+    public synchronized void appendViewIdentity(int recordIndex, ViewIdentity identity) throws IOException {
+        if (out == null) {
+            throw new IOException("Журнал закрыт");
+        }
+        if (viewsOut == null) {
+            viewsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getViewsFile(file))));
+        }
+        viewsOut.writeInt(recordIndex);
+        viewsOut.writeUTF(identity.getResourceId() != null ? identity.getResourceId() : "");
+        viewsOut.writeUTF(identity.getClassName() != null ? identity.getClassName() : "");
+        viewsOut.writeUTF(identity.getText() != null ? identity.getText() : "");
+        int[] path = identity.getIndexPath();
+        int length = path != null ? path.length : 0;
+        viewsOut.writeShort(length);
+        for (int i = 0; i < length; i++) {
+            viewsOut.writeShort(path[i]);
+        }
+        viewsOut.flush();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    // Файл описаний view рядом с журналом
+    static File getViewsFile(File journalFile) {
+        String name = journalFile.getName();
+        if (name.endsWith(EXTENSION)) {
+            name = name.substring(0, name.length() - EXTENSION.length());
+        }
+        return new File(journalFile.getParentFile(), name + VIEWS_EXTENSION);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (viewsOut != null) {
+            try {
+                viewsOut.close();
+            } finally {
+                viewsOut = null;
+            }
+        }
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    // Читает журнал (в том числе незавершенный) в пресет. Оборванная последняя запись отбрасывается.
+    static Preset read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC) {
+                throw new IOException("Неверный формат журнала " + file);
+            }
+            int version = raf.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Неподдерживаемая версия журнала: " + version);
+            }
+            String id = raf.readUTF();
+            String name = raf.readUTF();
+            long dateCreated = raf.readLong();
+
+            long dataStart = raf.getFilePointer();
+            int size = (int) ((raf.length() - dataStart) / RECORD_SIZE);
+            int[] types = new int[size];
+            float[] xs = new float[size];
+            float[] ys = new float[size];
+            long[] timestamps = new long[size];
+
+            FileChannel channel = raf.getChannel();
+            channel.position(dataStart);
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * READ_CHUNK_RECORDS);
+            int index = 0;
+            while (index < size) {
+                buffer.clear();
+                buffer.limit(Math.min(buffer.capacity(), (size - index) * RECORD_SIZE));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("Журнал " + file + " обрезан");
+                    }
+                }
+                buffer.flip();
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    types[index] = buffer.get() & 0xFF;
+                    xs[index] = buffer.getFloat();
+                    ys[index] = buffer.getFloat();
+                    timestamps[index] = buffer.getLong();
+                    index++;
+                }
+            }
+
+            ViewIdentity[] views = readViews(getViewsFile(file), size);
+            return new Preset(id, name, dateCreated, foldStrokes(types, xs, ys, timestamps, views, size));
+        }
+    }
+
+    // Описания view по номерам записей журнала; null — их нет.
+    // Оборванная последняя запись и описания записей, не попавших в журнал, отбрасываются.
+    private static ViewIdentity[] readViews(File viewsFile, int size) throws IOException {
+        if (!viewsFile.exists()) {
+            return null;
+        }
+        ViewIdentity[] views = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(viewsFile)))) {
+            while (true) {
+                int recordIndex = in.readInt();
+                String resourceId = in.readUTF();
+                String className = in.readUTF();
+                String text = in.readUTF();
+                int length = in.readUnsignedShort();
+                int[] path = null;
+                if (length > 0) {
+                    path = new int[length];
+                    for (int i = 0; i < length; i++) {
+                        path[i] = in.readUnsignedShort();
+                    }
+                }
+                if (recordIndex < 0 || recordIndex >= size) {
+                    continue;
+                }
+                if (views == null) {
+                    views = new ViewIdentity[size];
+                }
+                views[recordIndex] = new ViewIdentity(emptyToNull(resourceId), emptyToNull(className),
+                        emptyToNull(text), path);
+            }
+        } catch (EOFException e) {
+            // Конец файла или оборванная запись
+        }
+        return views;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    // Собирает записи точек в траектории штрихов
+    private static ActionTimeline foldStrokes(int[] types, float[] xs, float[] ys, long[] timestamps,
+                                              ViewIdentity[] views, int size) {
+        int actionCount = 0;
+        for (int i = 0; i < size; i++) {
+            if (types[i] != TYPE_STROKE_POINT) {
+                actionCount++;
+            }
+        }
+        if (actionCount == size) {
+            return new ActionTimeline(types, xs, ys, timestamps, null, null, null, null, views, size);
+        }
+
+        int[] outTypes = new int[actionCount];
+        float[] outXs = new float[actionCount];
+        float[] outYs = new float[actionCount];
+        long[] outTimestamps = new long[actionCount];
+        float[][] points = new float[actionCount][];
+        long[] durations = new long[actionCount];
+        ViewIdentity[] outViews = views != null ? new ViewIdentity[actionCount] : null;
+
+        int index = 0;
+        int i = 0;
+        while (i < size) {
+            if (types[i] == TYPE_STROKE_POINT) {
+                // Точка без штриха — журнал испорчен, пропускаем
+                i++;
+                continue;
+            }
+            outTypes[index] = types[i];
+            outXs[index] = xs[i];
+            outYs[index] = ys[i];
+            outTimestamps[index] = timestamps[i];
+            if (views != null) {
+                outViews[index] = views[i];
+            }
+
+            int end = i + 1;
+            while (end < size && types[end] == TYPE_STROKE_POINT) {
+                end++;
+            }
+            if (types[i] == MacroAction.TYPE_STROKE) {
+                float[] stroke = new float[(end - i) * 2];
+                stroke[0] = xs[i];
+                stroke[1] = ys[i];
+                for (int p = i + 1; p < end; p++) {
+                    stroke[(p - i) * 2] = xs[p];
+                    stroke[(p - i) * 2 + 1] = ys[p];
+                }
+                points[index] = stroke;
+                durations[index] = end - 1 > i ? timestamps[end - 1] : 0;
+            }
+            index++;
+            i = end;
+        }
+        return new ActionTimeline(outTypes, outXs, outYs, outTimestamps, points, durations, null, null,
+                outViews, index);
+    }
+}